@@ -0,0 +1,196 @@
+package org.nuxeo.mongodb.audit;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+
+/**
+ * Splits the audit collection into one collection per period of event dates, named after the base collection and the
+ * start of the period in UTC, for instance {@code audit_201510} for October 2015 in monthly mode.
+ * <p>
+ * Queries only visit the partitions overlapping their date range, and old entries are removed by dropping whole
+ * partitions. Without partitioning, the base collection is the only partition.
+ * <p>
+ * The list of partitions is cached. It follows the partitions added and dropped through this instance, and is reloaded
+ * every {@link #REFRESH_INTERVAL} to see those of other nodes.
+ */
+public class AuditPartitioning {
+
+    public static final String NONE = "none";
+
+    public static final String DAILY = "daily";
+
+    public static final String MONTHLY = "monthly";
+
+    /** Interval between reloads of the list of partitions, in milliseconds. */
+    public static final long REFRESH_INTERVAL = 60000;
+
+    protected static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    protected final DB db;
+
+    protected final String collectionName;
+
+    protected final String mode;
+
+    /** Partition names by start of their period, most recent first. */
+    protected volatile NavigableMap<Date, String> partitions;
+
+    protected volatile long loadTime;
+
+    public AuditPartitioning(DB db, String collectionName, String mode) {
+        if (!NONE.equals(mode) && !DAILY.equals(mode) && !MONTHLY.equals(mode)) {
+            throw new NuxeoException("Unknown audit partitioning: " + mode);
+        }
+        this.db = db;
+        this.collectionName = collectionName;
+        this.mode = mode;
+    }
+
+    public boolean isPartitioned() {
+        return !NONE.equals(mode);
+    }
+
+    /**
+     * Gets the partition holding the events of a date.
+     */
+    public DBCollection getPartition(Date date) {
+        if (!isPartitioned()) {
+            return db.getCollection(collectionName);
+        }
+        return db.getCollection(collectionName + "_" + newFormat().format(date));
+    }
+
+    /**
+     * Adds a partition that was written to, created by the write if it is new.
+     */
+    public void addPartition(DBCollection partition) {
+        if (isPartitioned()) {
+            getPartitionNames().putIfAbsent(getStart(partition.getName()), partition.getName());
+        }
+    }
+
+    /**
+     * Gets the existing partitions overlapping a date range, most recent first.
+     *
+     * @param from the start of the range, {@code null} for no lower bound
+     * @param to the end of the range, {@code null} for no upper bound
+     */
+    public List<DBCollection> getPartitions(Date from, Date to) {
+        if (!isPartitioned()) {
+            return Collections.singletonList(db.getCollection(collectionName));
+        }
+        NavigableMap<Date, String> names = getPartitionNames();
+        if (to != null) {
+            // most recent first, so the tail starts before the end
+            names = names.tailMap(to, false);
+        }
+        List<DBCollection> collections = new ArrayList<>(names.size());
+        for (Map.Entry<Date, String> name : names.entrySet()) {
+            if (from != null && !getEnd(name.getKey()).after(from)) {
+                // older ones end even before
+                break;
+            }
+            collections.add(db.getCollection(name.getValue()));
+        }
+        return collections;
+    }
+
+    /**
+     * Gets the cached partition names, loading them if needed.
+     */
+    protected NavigableMap<Date, String> getPartitionNames() {
+        NavigableMap<Date, String> names = partitions;
+        if (names == null || System.currentTimeMillis() - loadTime > REFRESH_INTERVAL) {
+            names = refresh();
+        }
+        return names;
+    }
+
+    /**
+     * Reloads the list of partitions from the database.
+     */
+    public NavigableMap<Date, String> refresh() {
+        NavigableMap<Date, String> names = new ConcurrentSkipListMap<>(Collections.reverseOrder());
+        for (String name : db.getCollectionNames()) {
+            Date start = getStart(name);
+            if (start != null) {
+                names.put(start, name);
+            }
+        }
+        loadTime = System.currentTimeMillis();
+        partitions = names;
+        return names;
+    }
+
+    /**
+     * Drops the partitions holding only events older than a date.
+     *
+     * @return the number of partitions dropped
+     */
+    public int dropPartitions(Date before) {
+        if (!isPartitioned()) {
+            return 0;
+        }
+        int dropped = 0;
+        // including the partitions of other nodes
+        for (String name : db.getCollectionNames()) {
+            Date start = getStart(name);
+            if (start != null && !getEnd(start).after(before)) {
+                db.getCollection(name).drop();
+                getPartitionNames().remove(start);
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Gets the start of the period of a partition.
+     *
+     * @return the start, or {@code null} if the collection is not a partition
+     */
+    protected Date getStart(String name) {
+        String prefix = collectionName + "_";
+        if (!name.startsWith(prefix)) {
+            return null;
+        }
+        String suffix = name.substring(prefix.length());
+        SimpleDateFormat format = newFormat();
+        try {
+            Date start = format.parse(suffix);
+            // reject trailing characters, which parse ignores
+            return format.format(start).equals(suffix) ? start : null;
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    protected Date getEnd(Date start) {
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.setTime(start);
+        calendar.add(MONTHLY.equals(mode) ? Calendar.MONTH : Calendar.DAY_OF_MONTH, 1);
+        return calendar.getTime();
+    }
+
+    protected SimpleDateFormat newFormat() {
+        SimpleDateFormat format = new SimpleDateFormat(MONTHLY.equals(mode) ? "yyyyMM" : "yyyyMMdd");
+        format.setTimeZone(UTC);
+        format.setLenient(false);
+        return format;
+    }
+
+}
@@ -0,0 +1,67 @@
+package org.nuxeo.mongodb.audit;
+
+import java.io.Serializable;
+
+/**
+ * Counts of audit events by key and time bucket.
+ * <p>
+ * Bucket {@code i} holds the events dated from {@code start + i * interval} included to
+ * {@code start + (i + 1) * interval} excluded, and {@code getCounts()[k][i]} is the number of events of key
+ * {@code getKeys()[k]} in that bucket.
+ */
+public class EventHistogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    protected final long start;
+
+    protected final long interval;
+
+    protected final String[] keys;
+
+    protected final long[][] counts;
+
+    public EventHistogram(long start, long interval, String[] keys, long[][] counts) {
+        this.start = start;
+        this.interval = interval;
+        this.keys = keys;
+        this.counts = counts;
+    }
+
+    /**
+     * Gets the start of the first bucket, in milliseconds since the epoch.
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Gets the duration of a bucket, in milliseconds.
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Gets the keys, sorted. Events without a value for the grouped property have an empty key.
+     */
+    public String[] getKeys() {
+        return keys;
+    }
+
+    public long[][] getCounts() {
+        return counts;
+    }
+
+    /**
+     * Gets the number of events of a key over all the buckets.
+     */
+    public long getTotal(int key) {
+        long total = 0;
+        for (long count : counts[key]) {
+            total += count;
+        }
+        return total;
+    }
+
+}
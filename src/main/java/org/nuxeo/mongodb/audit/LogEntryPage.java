@@ -0,0 +1,37 @@
+package org.nuxeo.mongodb.audit;
+
+import java.io.Serializable;
+import java.util.List;
+
+import org.nuxeo.ecm.platform.audit.api.LogEntry;
+
+/**
+ * A page of log entries, with the token to get the next one.
+ */
+public class LogEntryPage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    protected final List<LogEntry> entries;
+
+    protected final String nextToken;
+
+    public LogEntryPage(List<LogEntry> entries, String nextToken) {
+        this.entries = entries;
+        this.nextToken = nextToken;
+    }
+
+    public List<LogEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Gets the token to pass to get the next page.
+     *
+     * @return the token, or {@code null} if this is the last page
+     */
+    public String getNextToken() {
+        return nextToken;
+    }
+
+}
@@ -1,93 +1,937 @@
 package org.nuxeo.mongodb.audit;
 
+import static org.nuxeo.mongodb.audit.MongoDBLogEntry.CATEGORY;
+import static org.nuxeo.mongodb.audit.MongoDBLogEntry.DOC_PATH;
+import static org.nuxeo.mongodb.audit.MongoDBLogEntry.DOC_UUID;
+import static org.nuxeo.mongodb.audit.MongoDBLogEntry.EVENT_DATE;
+import static org.nuxeo.mongodb.audit.MongoDBLogEntry.EVENT_ID;
+import static org.nuxeo.mongodb.audit.MongoDBLogEntry.EXTENDED_INFOS;
+import static org.nuxeo.mongodb.audit.MongoDBLogEntry.ID;
+
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.platform.audit.api.ExtendedInfo;
 import org.nuxeo.ecm.platform.audit.api.FilterMapEntry;
 import org.nuxeo.ecm.platform.audit.api.LogEntry;
+import org.nuxeo.ecm.platform.audit.api.query.AuditQueryException;
+import org.nuxeo.ecm.platform.audit.api.query.DateRangeParser;
 import org.nuxeo.ecm.platform.audit.service.AbstractAuditBackend;
 import org.nuxeo.ecm.platform.audit.service.AuditBackend;
+import org.nuxeo.mongodb.client.MongoDBClientRegistry;
+import org.nuxeo.mongodb.client.MongoDBProfile;
+import org.nuxeo.mongodb.seq.MongoDBSequencer;
+import org.nuxeo.mongodb.seq.SequenceRange;
+import org.nuxeo.runtime.api.Framework;
+
+import com.mongodb.AggregationOutput;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
 
+/**
+ * Audit backend storing log entries in a MongoDB collection.
+ * <p>
+ * Entries are queued and written by a background flusher as unordered bulk inserts, so that logging never waits for
+ * MongoDB. A batch is flushed when it holds {@code batchSize} entries or when its first entry has waited for
+ * {@code flushInterval} milliseconds. When the queue is full, callers block until the flusher catches up. Entries get
+ * their id from the sequencer when their batch is written, and are only visible to queries once flushed, see
+ * {@link #flush}.
+ * <p>
+ * The collection can be partitioned by event date, see {@link AuditPartitioning}, in which case queries only visit
+ * the partitions overlapping their date range.
+ */
 public class MongoDBAuditBackend extends AbstractAuditBackend implements AuditBackend {
 
-    @Override
-    public List<LogEntry> getLogEntriesFor(String arg0, Map<String, FilterMapEntry> arg1, boolean arg2) {
-        // TODO Auto-generated method stub
-        // return null;
-        throw new UnsupportedOperationException();
+    private static final Log log = LogFactory.getLog(MongoDBAuditBackend.class);
+
+    public static final String PROPERTY_PREFIX = "nuxeo.mongodb.audit.";
+
+    /** Name of the audit collection, {@code audit} by default. */
+    public static final String COLLECTION_PROPERTY = PROPERTY_PREFIX + "collection";
+
+    /** Maximum number of entries waiting to be written. */
+    public static final String QUEUE_SIZE_PROPERTY = PROPERTY_PREFIX + "queueSize";
+
+    /** Maximum number of entries in a bulk insert. */
+    public static final String BATCH_SIZE_PROPERTY = PROPERTY_PREFIX + "batchSize";
+
+    /** Maximum time an entry waits before being written, in milliseconds. */
+    public static final String FLUSH_INTERVAL_PROPERTY = PROPERTY_PREFIX + "flushInterval";
+
+    /** Maximum time to wait for the queued entries to be written on shutdown, in milliseconds. */
+    public static final String DRAIN_TIMEOUT_PROPERTY = PROPERTY_PREFIX + "drainTimeout";
+
+    /**
+     * Partitioning of the audit collection by event date: {@code none} (default), {@code monthly} or {@code daily}.
+     *
+     * @see AuditPartitioning
+     */
+    public static final String PARTITIONING_PROPERTY = PROPERTY_PREFIX + "partitioning";
+
+    /**
+     * Number of days entries are kept, unlimited by default. Partitions are dropped once all their entries are
+     * expired, without partitioning a TTL index removes the entries.
+     */
+    public static final String RETENTION_DAYS_PROPERTY = PROPERTY_PREFIX + "retentionDays";
+
+    public static final String SEQ_NAME = "audit";
+
+    /**
+     * Entries are read from the primary by default, so that queries see the entries just flushed. Set the
+     * {@code nuxeo.mongodb.audit.readPreference} property to read from secondaries.
+     */
+    public static final MongoDBProfile DEFAULT_PROFILE = new MongoDBProfile(WriteConcern.ACKNOWLEDGED,
+            ReadPreference.primary());
+
+    protected static final int MAX_ATTEMPTS = 3;
+
+    protected static final long RETRY_DELAY = 1000;
+
+    protected static final long STOP_CHECK_INTERVAL = 100;
+
+    /** Maximum number of buckets of a histogram, each key holding a count per bucket. */
+    public static final int MAX_HISTOGRAM_BUCKETS = 100000;
+
+    protected MongoClient client;
+
+    protected String dbname;
+
+    protected String collectionName = "audit";
+
+    protected MongoDBProfile profile;
+
+    protected AuditPartitioning partitioning;
+
+    protected int retentionDays;
+
+    /** Partitions written to by this node, which have their indexes. */
+    protected final Set<String> indexedPartitions = ConcurrentHashMap.newKeySet();
+
+    protected MongoDBSequencer sequencer;
+
+    protected int queueSize = 10000;
+
+    protected int batchSize = 1000;
+
+    protected long flushInterval = 1000;
+
+    protected long drainTimeout = 30 * 1000;
+
+    protected BlockingQueue<QueuedEntry> queue;
+
+    protected Thread flusher;
+
+    protected volatile boolean stopped;
+
+    /** Number of entries queued, and number of entries whose write is over, for {@link #flush}. */
+    protected final AtomicLong queued = new AtomicLong();
+
+    protected final AtomicLong processed = new AtomicLong();
+
+    /**
+     * Number of entries a {@link #flush} waits for. Until they are processed, the flusher writes its batches right
+     * away.
+     */
+    protected final AtomicLong flushTarget = new AtomicLong();
+
+    /**
+     * An entry waiting to be written, and its BSON mapping taken when it was queued.
+     */
+    protected static class QueuedEntry {
+
+        protected final LogEntry entry;
+
+        protected final DBObject dbEntry;
+
+        protected QueuedEntry(LogEntry entry, DBObject dbEntry) {
+            this.entry = entry;
+            this.dbEntry = dbEntry;
+        }
     }
 
     @Override
-    public LogEntry getLogEntryByID(long arg0) {
-        // TODO Auto-generated method stub
-        // return null;
-        throw new UnsupportedOperationException();
+    public void onApplicationStarted() {
+        client = MongoDBClientRegistry.acquire(Framework.getProperty("nuxeo.mongodb.server"),
+                Collections.<String, String> emptyMap());
+        Map<String, String> properties = new HashMap<>();
+        for (String name : new String[] { MongoDBProfile.WRITE_CONCERN, MongoDBProfile.READ_PREFERENCE }) {
+            String value = Framework.getProperty(PROPERTY_PREFIX + name);
+            if (value != null) {
+                properties.put(name, value);
+            }
+        }
+        profile = MongoDBProfile.fromProperties(properties, null, DEFAULT_PROFILE);
+        dbname = Framework.getProperty("nuxeo.mongodb.dbname");
+        collectionName = Framework.getProperty(COLLECTION_PROPERTY, collectionName);
+        String value = Framework.getProperty(QUEUE_SIZE_PROPERTY);
+        if (value != null) {
+            queueSize = Integer.parseInt(value);
+        }
+        value = Framework.getProperty(BATCH_SIZE_PROPERTY);
+        if (value != null) {
+            batchSize = Integer.parseInt(value);
+        }
+        value = Framework.getProperty(FLUSH_INTERVAL_PROPERTY);
+        if (value != null) {
+            flushInterval = Long.parseLong(value);
+        }
+        value = Framework.getProperty(DRAIN_TIMEOUT_PROPERTY);
+        if (value != null) {
+            drainTimeout = Long.parseLong(value);
+        }
+
+        value = Framework.getProperty(RETENTION_DAYS_PROPERTY);
+        if (value != null) {
+            retentionDays = Integer.parseInt(value);
+        }
+        partitioning = new AuditPartitioning(client.getDB(dbname), collectionName,
+                Framework.getProperty(PARTITIONING_PROPERTY, AuditPartitioning.NONE));
+        indexedPartitions.clear();
+        if (partitioning.isPartitioned()) {
+            dropExpiredPartitions();
+        } else {
+            createIndexes(getCollection());
+        }
+
+        sequencer = new MongoDBSequencer();
+        sequencer.init();
+
+        queue = new ArrayBlockingQueue<>(queueSize);
+        stopped = false;
+        flusher = new Thread(this::flushLoop, "MongoDB-audit-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
     }
 
+    /**
+     * Stops the flusher once it has written the queued entries, waiting for {@code drainTimeout} at most.
+     */
     @Override
-    public List<?> nativeQuery(String arg0, Map<String, Object> arg1, int arg2, int arg3) {
-        // TODO Auto-generated method stub
-        // return null;
-        throw new UnsupportedOperationException();
+    public void deactivate() {
+        stopped = true;
+        long deadline = System.currentTimeMillis() + drainTimeout;
+        boolean drained = true;
+        if (flusher != null) {
+            try {
+                flusher.join(drainTimeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            drained = !flusher.isAlive();
+            flusher = null;
+        }
+        if (drained && queue != null && !Thread.currentThread().isInterrupted()) {
+            // entries queued while the flusher was stopping
+            drained = flush(Math.max(deadline - System.currentTimeMillis(), 1));
+        }
+        if (!drained) {
+            log.warn("Audit entries not written in " + drainTimeout + "ms, " + queue.size() + " entries still queued");
+        }
+        if (sequencer != null) {
+            sequencer.dispose();
+            sequencer = null;
+        }
+        if (client != null) {
+            MongoDBClientRegistry.release(client);
+            client = null;
+        }
+    }
+
+    protected DBCollection getCollection() {
+        return client.getDB(dbname).getCollection(collectionName);
+    }
+
+    /**
+     * Makes sure a partition written to has its indexes. The first write to a new partition also drops the expired
+     * ones. Failures are left to the caller, and the partition is prepared again by its next write.
+     */
+    protected void preparePartition(DBCollection collection) {
+        if (!partitioning.isPartitioned() || indexedPartitions.contains(collection.getName())) {
+            return;
+        }
+        // before creating the new partition, which may hold late entries of an expired period
+        dropExpiredPartitions();
+        createIndexes(collection);
+        indexedPartitions.add(collection.getName());
+    }
+
+    protected void dropExpiredPartitions() {
+        if (retentionDays <= 0) {
+            return;
+        }
+        Date before = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(retentionDays));
+        int dropped;
+        try {
+            dropped = partitioning.dropPartitions(before);
+        } catch (MongoException e) {
+            // retried with the next new partition, entries are written anyway
+            log.warn("Unable to drop the expired audit partitions: " + e.getMessage());
+            return;
+        }
+        if (dropped > 0) {
+            log.info("Dropped " + dropped + " expired audit partitions");
+        }
+    }
+
+    /**
+     * Creates the indexes of the page queries, which sort by event date then id so that pages can be walked by key.
+     * Queries by category use the compound index, the others the event date one. Without partitioning, the retention
+     * is enforced by a TTL index.
+     */
+    protected void createIndexes(DBCollection collection) {
+        DBObject byCategory = new BasicDBObject(CATEGORY, 1).append(EVENT_ID, 1).append(EVENT_DATE, -1);
+        collection.createIndex(byCategory.append(ID, -1));
+        collection.createIndex(new BasicDBObject(EVENT_DATE, -1).append(ID, -1));
+        collection.createIndex(new BasicDBObject(DOC_UUID, 1).append(EVENT_DATE, -1));
+        collection.createIndex(new BasicDBObject(EVENT_ID, 1).append(EVENT_DATE, -1));
+        if (retentionDays > 0 && !partitioning.isPartitioned()) {
+            try {
+                collection.createIndex(new BasicDBObject(EVENT_DATE, 1),
+                        new BasicDBObject("expireAfterSeconds", TimeUnit.DAYS.toSeconds(retentionDays)));
+            } catch (MongoException e) {
+                // an existing TTL index with another expiration cannot be recreated
+                log.warn("Unable to create the audit TTL index: " + e.getMessage());
+            }
+        }
     }
 
+    /**
+     * Queues entries to be written. Their id is set once they are written, see {@link #flush}.
+     */
     @Override
-    public List<LogEntry> queryLogsByPage(String[] arg0, String arg1, String[] arg2, String arg3, int arg4, int arg5) {
-        // TODO Auto-generated method stub
-        // return null;
-        throw new UnsupportedOperationException();
+    public void addLogEntries(List<LogEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        if (stopped) {
+            throw new NuxeoException("Audit backend is stopped");
+        }
+        try {
+            for (LogEntry entry : entries) {
+                // blocks when the flusher is behind
+                queue.put(new QueuedEntry(entry, toDBObject(entry)));
+                queued.incrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException("Interrupted while queuing audit entries", e);
+        }
+    }
+
+    /**
+     * Writes the entries queued so far on the calling thread, and waits for the ones being written by the flusher.
+     */
+    public void flush() {
+        flush(0);
+    }
+
+    /**
+     * Writes the entries queued so far on the calling thread, and waits for the ones being written by the flusher.
+     *
+     * @param timeout the maximum time to wait for the flusher in milliseconds, 0 to wait as long as needed
+     * @return {@code true} if all the entries queued before the call were processed
+     */
+    public boolean flush(long timeout) {
+        long target = queued.get();
+        flushTarget.accumulateAndGet(target, Math::max);
+        List<QueuedEntry> batch = new ArrayList<>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0) {
+            insert(batch);
+            batch.clear();
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (processed) {
+            try {
+                while (processed.get() < target) {
+                    long wait = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+                    if (timeout != 0 && wait <= 0) {
+                        return false;
+                    }
+                    processed.wait(wait);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected void flushLoop() {
+        List<QueuedEntry> batch = new ArrayList<>(batchSize);
+        try {
+            while (!stopped || !queue.isEmpty()) {
+                // short polls, so that a stop is noticed whatever the flush interval
+                QueuedEntry first = queue.poll(STOP_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.currentTimeMillis() + flushInterval;
+                for (;;) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long wait = deadline - System.currentTimeMillis();
+                    if (batch.size() >= batchSize || wait <= 0 || stopped || flushTarget.get() > processed.get()) {
+                        break;
+                    }
+                    QueuedEntry next = queue.poll(Math.min(wait, STOP_CHECK_INTERVAL), TimeUnit.MILLISECONDS);
+                    if (next != null) {
+                        batch.add(next);
+                    }
+                }
+                try {
+                    insert(batch);
+                } catch (RuntimeException e) {
+                    // keep the flusher alive, or callers would block forever on a full queue
+                    log.error("Unable to write " + batch.size() + " audit entries", e);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // entries still in the batch are lost, the queue is drained by deactivate
+            log.error("Audit flusher interrupted, " + batch.size() + " entries lost");
+            processed.addAndGet(batch.size());
+            synchronized (processed) {
+                processed.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Gives their ids to a batch of entries, then inserts them as an unordered bulk write, retrying on failure. Entries
+     * inserted by a failed attempt are then rejected as duplicates of their id, which is not an error.
+     */
+    protected void insert(List<QueuedEntry> batch) {
+        try {
+            List<DBObject> dbEntries = assignIds(batch);
+            if (dbEntries != null) {
+                doInsert(dbEntries);
+            }
+        } finally {
+            processed.addAndGet(batch.size());
+            synchronized (processed) {
+                processed.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Reserves the ids of a batch of entries in a single round trip.
+     *
+     * @return the entries to insert, or {@code null} if no ids could be reserved
+     */
+    protected List<DBObject> assignIds(List<QueuedEntry> batch) {
+        for (int attempt = 1;; attempt++) {
+            SequenceRange ids;
+            try {
+                ids = sequencer.getNextBlock(SEQ_NAME, batch.size());
+            } catch (MongoException e) {
+                if (retry(attempt, batch.size(), e)) {
+                    continue;
+                }
+                return null;
+            }
+            List<DBObject> dbEntries = new ArrayList<>(batch.size());
+            long id = ids.getFirst();
+            for (QueuedEntry entry : batch) {
+                entry.entry.setId(id);
+                entry.dbEntry.put(ID, Long.valueOf(id));
+                dbEntries.add(entry.dbEntry);
+                id++;
+            }
+            return dbEntries;
+        }
+    }
+
+    protected void doInsert(List<DBObject> batch) {
+        if (partitioning.isPartitioned()) {
+            // one bulk write per partition
+            Map<String, List<DBObject>> partitions = new HashMap<>();
+            Map<String, DBCollection> collections = new HashMap<>();
+            for (DBObject entry : batch) {
+                Date eventDate = (Date) entry.get(EVENT_DATE);
+                DBCollection collection = partitioning.getPartition(eventDate == null ? new Date() : eventDate);
+                collections.put(collection.getName(), collection);
+                partitions.computeIfAbsent(collection.getName(), k -> new ArrayList<>()).add(entry);
+            }
+            for (Map.Entry<String, List<DBObject>> partition : partitions.entrySet()) {
+                doInsert(collections.get(partition.getKey()), partition.getValue());
+            }
+        } else {
+            doInsert(getCollection(), batch);
+        }
+    }
+
+    protected void doInsert(DBCollection collection, List<DBObject> batch) {
+        for (int attempt = 1;; attempt++) {
+            MongoException failure;
+            try {
+                preparePartition(collection);
+                BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+                for (DBObject entry : batch) {
+                    bulk.insert(entry);
+                }
+                bulk.execute(profile.getWriteConcern());
+                partitioning.addPartition(collection);
+                return;
+            } catch (BulkWriteException e) {
+                if (onlyDuplicates(e)) {
+                    partitioning.addPartition(collection);
+                    return;
+                }
+                failure = e;
+            } catch (MongoException e) {
+                failure = e;
+            }
+            if (!retry(attempt, batch.size(), failure)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits before retrying a failed attempt to write entries.
+     *
+     * @return {@code false} if the entries are given up
+     */
+    protected boolean retry(int attempt, int size, MongoException failure) {
+        if (attempt >= MAX_ATTEMPTS) {
+            log.error("Unable to write " + size + " audit entries", failure);
+            return false;
+        }
+        log.warn("Failed to write " + size + " audit entries, retrying: " + failure.getMessage());
+        try {
+            Thread.sleep(RETRY_DELAY);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted, " + size + " audit entries lost", failure);
+            return false;
+        }
+        return true;
+    }
+
+    protected static boolean onlyDuplicates(BulkWriteException e) {
+        if (e.getWriteConcernError() != null) {
+            return false;
+        }
+        for (BulkWriteError error : e.getWriteErrors()) {
+            if (error.getCode() != 11000 && error.getCode() != 11001) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected DBObject toDBObject(LogEntry entry) {
+        return MongoDBLogEntry.toDBObject(entry);
+    }
+
+    protected LogEntry toLogEntry(DBObject dbEntry) {
+        return MongoDBLogEntry.fromDBObject(dbEntry);
     }
 
     @Override
-    public List<LogEntry> queryLogsByPage(String[] arg0, Date arg1, String[] arg2, String arg3, int arg4, int arg5) {
-        // TODO Auto-generated method stub
-        // return null;
-        throw new UnsupportedOperationException();
+    public List<LogEntry> getLogEntriesFor(String uuid, Map<String, FilterMapEntry> filterMap, boolean doDefaultSort) {
+        return getLogEntriesFor(uuid, filterMap, doDefaultSort, true);
+    }
+
+    /**
+     * Gets the entries of a document, using the index on the document id and event date.
+     *
+     * @param doDefaultSort whether to sort the entries by event date, most recent first
+     * @param withExtendedInfos whether to read the extended infos, which are most of the size of an entry
+     */
+    public List<LogEntry> getLogEntriesFor(String uuid, Map<String, FilterMapEntry> filterMap,
+            boolean doDefaultSort, boolean withExtendedInfos) {
+        DBObject query = new BasicDBObject(DOC_UUID, uuid);
+        Date from = null;
+        Date to = null;
+        if (filterMap != null) {
+            List<DBObject> filters = new ArrayList<>();
+            for (FilterMapEntry filter : filterMap.values()) {
+                filters.add(toQuery(filter));
+                if ("eventDate".equals(filter.getColumnName()) && filter.getObject() instanceof Date) {
+                    // bounds of the partitions to visit
+                    long date = ((Date) filter.getObject()).getTime();
+                    String operator = filter.getOperator().trim();
+                    if (operator.equals("=") || operator.startsWith(">")) {
+                        from = from == null || from.getTime() < date ? new Date(date) : from;
+                    }
+                    if (operator.equals("=") || operator.startsWith("<") && !operator.equals("<>")) {
+                        to = to == null || to.getTime() > date + 1 ? new Date(date + 1) : to;
+                    }
+                }
+            }
+            if (!filters.isEmpty()) {
+                // several filters may apply to the same column
+                query.put("$and", filters);
+            }
+        }
+        DBObject keys = withExtendedInfos ? null : new BasicDBObject(EXTENDED_INFOS, 0);
+        List<LogEntry> entries = new ArrayList<>();
+        // partitions are visited most recent first, which keeps the default sort across partitions
+        for (DBCollection collection : partitioning.getPartitions(from, to)) {
+            DBCursor cursor = collection.find(query, keys);
+            if (doDefaultSort) {
+                cursor.sort(new BasicDBObject(EVENT_DATE, -1));
+            }
+            cursor.setReadPreference(profile.getReadPreference());
+            entries.addAll(toLogEntries(cursor));
+        }
+        return entries;
+    }
+
+    /**
+     * Translates a filter on a log entry property, as used by the JPA backend, into a query.
+     */
+    protected DBObject toQuery(FilterMapEntry filter) {
+        String field = getFieldName(filter.getColumnName());
+        Object value = filter.getObject();
+        String operator = filter.getOperator().trim().toUpperCase();
+        switch (operator) {
+        case "=":
+            return new BasicDBObject(field, value);
+        case "<>":
+        case "!=":
+            return new BasicDBObject(field, new BasicDBObject("$ne", value));
+        case "<":
+            return new BasicDBObject(field, new BasicDBObject("$lt", value));
+        case "<=":
+            return new BasicDBObject(field, new BasicDBObject("$lte", value));
+        case ">":
+            return new BasicDBObject(field, new BasicDBObject("$gt", value));
+        case ">=":
+            return new BasicDBObject(field, new BasicDBObject("$gte", value));
+        case "IN":
+            return new BasicDBObject(field, new BasicDBObject("$in", value));
+        case "LIKE":
+            return new BasicDBObject(field, likeToPattern(String.valueOf(value)));
+        default:
+            throw new NuxeoException("Unsupported operator: " + filter.getOperator());
+        }
+    }
+
+    /**
+     * Converts a SQL LIKE pattern into a regular expression.
+     */
+    protected static Pattern likeToPattern(String like) {
+        StringBuilder regex = new StringBuilder("^");
+        for (char c : like.toCharArray()) {
+            if (c == '%') {
+                regex.append(".*");
+            } else if (c == '_') {
+                regex.append('.');
+            } else if ("\\^$.|?*+()[]{}".indexOf(c) >= 0) {
+                regex.append('\\').append(c);
+            } else {
+                regex.append(c);
+            }
+        }
+        return Pattern.compile(regex.append('$').toString(), Pattern.DOTALL);
+    }
+
+    /**
+     * Gets the field storing a log entry property.
+     */
+    protected String getFieldName(String property) {
+        String field = MongoDBLogEntry.getFieldName(property);
+        if (field == null) {
+            throw new NuxeoException("Unknown log entry property: " + property);
+        }
+        return field;
     }
 
     @Override
-    public void addLogEntries(List<LogEntry> arg0) {
-        // TODO Auto-generated method stub
-        // 
-        throw new UnsupportedOperationException();
+    public LogEntry getLogEntryByID(long id) {
+        // ids do not tell their date, look into each partition
+        for (DBCollection collection : partitioning.getPartitions(null, null)) {
+            DBObject dbEntry = collection.findOne(new BasicDBObject(ID, id), null, profile.getReadPreference());
+            if (dbEntry != null) {
+                return toLogEntry(dbEntry);
+            }
+        }
+        return null;
     }
 
     @Override
-    public Long getEventsCount(String arg0) {
+    public List<?> nativeQuery(String arg0, Map<String, Object> arg1, int arg2, int arg3) {
         // TODO Auto-generated method stub
         // return null;
         throw new UnsupportedOperationException();
     }
 
     @Override
-    public long syncLogCreationEntries(String arg0, String arg1, Boolean arg2) {
-        // TODO Auto-generated method stub
-        // return 0;
-        throw new UnsupportedOperationException();
+    public List<LogEntry> queryLogsByPage(String[] eventIds, String dateRange, String[] categories, String path,
+            int pageNb, int pageSize) {
+        return queryLogsByPage(eventIds, parseDateRange(dateRange), categories, path, pageNb, pageSize);
     }
 
+    /**
+     * Gets a page of entries, most recent first. Pages start at 1, a page size of 0 or less returns all the entries.
+     * <p>
+     * Skipping to a page costs the size of all the pages before it, use
+     * {@link #queryLogsByPage(String[], Date, String[], String, String, int)} to walk deep history.
+     */
     @Override
-    public void deactivate() {
-        // TODO Auto-generated method stub
-        // 
-        throw new UnsupportedOperationException();
+    public List<LogEntry> queryLogsByPage(String[] eventIds, Date limit, String[] categories, String path,
+            int pageNb, int pageSize) {
+        DBObject query = buildQuery(eventIds, limit, categories, path);
+        long skip = pageSize > 0 && pageNb > 1 ? (long) (pageNb - 1) * pageSize : 0;
+        List<LogEntry> entries = new ArrayList<>();
+        for (DBCollection collection : partitioning.getPartitions(limit, null)) {
+            if (skip > 0 && partitioning.isPartitioned()) {
+                // skip whole partitions on their count
+                long count = collection.count(query, profile.getReadPreference());
+                if (count <= skip) {
+                    skip -= count;
+                    continue;
+                }
+            }
+            DBCursor cursor = collection.find(query).sort(PAGE_ORDER);
+            cursor.setReadPreference(profile.getReadPreference());
+            if (skip > 0) {
+                cursor.skip((int) skip);
+                skip = 0;
+            }
+            if (pageSize > 0) {
+                cursor.limit(pageSize - entries.size());
+            }
+            entries.addAll(toLogEntries(cursor));
+            if (pageSize > 0 && entries.size() >= pageSize) {
+                break;
+            }
+        }
+        return entries;
+    }
+
+    public LogEntryPage queryLogsByPage(String[] eventIds, String dateRange, String[] categories, String path,
+            String token, int pageSize) {
+        return queryLogsByPage(eventIds, parseDateRange(dateRange), categories, path, token, pageSize);
+    }
+
+    /**
+     * Gets a page of entries, most recent first, starting after the entry the token points to. Each page resumes the
+     * index scan where the previous one stopped, so its cost does not depend on how deep it is.
+     *
+     * @param token the token of the previous page, {@code null} for the first page
+     * @see LogEntryPage#getNextToken
+     */
+    public LogEntryPage queryLogsByPage(String[] eventIds, Date limit, String[] categories, String path,
+            String token, int pageSize) {
+        if (pageSize <= 0) {
+            throw new NuxeoException("Invalid page size: " + pageSize);
+        }
+        DBObject query = buildQuery(eventIds, limit, categories, path);
+        Date to = null;
+        if (token != null) {
+            Date tokenDate = addAfterToken(query, token);
+            // the partitions after the one of the token entry only hold more recent entries
+            to = new Date(tokenDate.getTime() + 1);
+        }
+        List<LogEntry> entries = new ArrayList<>();
+        for (DBCollection collection : partitioning.getPartitions(limit, to)) {
+            DBCursor cursor = collection.find(query).sort(PAGE_ORDER).limit(pageSize - entries.size());
+            cursor.setReadPreference(profile.getReadPreference());
+            entries.addAll(toLogEntries(cursor));
+            if (entries.size() >= pageSize) {
+                break;
+            }
+        }
+        String nextToken = null;
+        if (entries.size() == pageSize) {
+            LogEntry last = entries.get(entries.size() - 1);
+            nextToken = last.getEventDate().getTime() + TOKEN_SEPARATOR + last.getId();
+        }
+        return new LogEntryPage(entries, nextToken);
+    }
+
+    protected static final DBObject PAGE_ORDER = new BasicDBObject(EVENT_DATE, -1).append(ID, -1);
+
+    protected static final String TOKEN_SEPARATOR = ":";
+
+    /**
+     * Restricts a query to the entries after the one a token points to, in page order. The token date bounds the event
+     * date of the query itself, so that the page scans the index from there whatever the server version, and only the
+     * entries of the same date are told apart by id.
+     *
+     * @return the date of the token
+     */
+    protected Date addAfterToken(DBObject query, String token) {
+        String[] parts = token.split(TOKEN_SEPARATOR);
+        Date date;
+        long id;
+        try {
+            if (parts.length != 2) {
+                throw new NumberFormatException();
+            }
+            date = new Date(Long.parseLong(parts[0]));
+            id = Long.parseLong(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new NuxeoException("Invalid page token: " + token);
+        }
+        DBObject dateRange = (DBObject) query.get(EVENT_DATE);
+        if (dateRange == null) {
+            dateRange = new BasicDBObject();
+            query.put(EVENT_DATE, dateRange);
+        }
+        dateRange.put("$lte", date);
+        List<DBObject> after = new ArrayList<>();
+        after.add(new BasicDBObject(EVENT_DATE, new BasicDBObject("$lt", date)));
+        after.add(new BasicDBObject(ID, new BasicDBObject("$lt", id)));
+        query.put("$or", after);
+        return date;
+    }
+
+    protected DBObject buildQuery(String[] eventIds, Date limit, String[] categories, String path) {
+        DBObject query = new BasicDBObject();
+        if (categories != null && categories.length > 0) {
+            query.put(CATEGORY, new BasicDBObject("$in", categories));
+        }
+        if (eventIds != null && eventIds.length > 0) {
+            query.put(EVENT_ID, new BasicDBObject("$in", eventIds));
+        }
+        if (limit != null) {
+            query.put(EVENT_DATE, new BasicDBObject("$gte", limit));
+        }
+        if (path != null) {
+            // anchored prefix without metacharacters, which can use an index
+            query.put(DOC_PATH, Pattern.compile("^" + path.replaceAll("[\\\\^$.|?*+()\\[\\]{}]", "\\\\$0")));
+        }
+        return query;
+    }
+
+    protected Date parseDateRange(String dateRange) {
+        if (dateRange == null) {
+            return null;
+        }
+        try {
+            return DateRangeParser.parseDateRange(dateRange);
+        } catch (AuditQueryException e) {
+            throw new NuxeoException("Invalid date range: " + dateRange, e);
+        }
+    }
+
+    protected List<LogEntry> toLogEntries(DBCursor cursor) {
+        List<LogEntry> entries = new ArrayList<>();
+        try {
+            for (DBObject dbEntry : cursor) {
+                entries.add(toLogEntry(dbEntry));
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
     }
 
     @Override
-    public void onApplicationStarted() {
-        // TODO Auto-generated method stub
-        // 
-        throw new UnsupportedOperationException();
+    public Long getEventsCount(String eventId) {
+        // counted on the event id index, without reading any entry
+        long count = 0;
+        for (DBCollection collection : partitioning.getPartitions(null, null)) {
+            count += collection.count(new BasicDBObject(EVENT_ID, eventId), profile.getReadPreference());
+        }
+        return Long.valueOf(count);
+    }
+
+    /**
+     * Counts events by the value of a property and by time bucket, server-side.
+     * <p>
+     * Buckets are computed with date arithmetic in a {@code $group} stage, which works with any server. The
+     * {@code $bucket} stage is run by the server and needs MongoDB 3.4, whatever the driver. Only the non-empty groups
+     * are returned by the server.
+     *
+     * @param property the log entry property to group by, for instance {@code eventId}, {@code category} or
+     *            {@code principalName}, or {@code null} to only count by time
+     * @param eventIds the event ids to count, {@code null} for all
+     * @param categories the categories to count, {@code null} for all
+     * @param from the start of the first bucket, required
+     * @param to the end of the last bucket, excluded, required
+     * @param interval the duration of a bucket in milliseconds, 0 or less for a single bucket, giving at most
+     *            {@link #MAX_HISTOGRAM_BUCKETS} buckets
+     */
+    public EventHistogram getEventHistogram(String property, String[] eventIds, String[] categories, Date from,
+            Date to, long interval) {
+        if (from == null || to == null) {
+            throw new NuxeoException("Histogram needs a start and an end date");
+        }
+        if (!to.after(from)) {
+            throw new NuxeoException("Histogram end " + to + " is not after its start " + from);
+        }
+        long start = from.getTime();
+        if (interval <= 0) {
+            interval = Math.max(to.getTime() - start, 1);
+        }
+        long buckets = (to.getTime() - start - 1) / interval + 1;
+        if (buckets > MAX_HISTOGRAM_BUCKETS) {
+            throw new NuxeoException("Histogram of " + buckets + " buckets, more than " + MAX_HISTOGRAM_BUCKETS);
+        }
+        int numBuckets = (int) buckets;
+        DBObject match = buildQuery(eventIds, null, categories, null);
+        match.put(EVENT_DATE, new BasicDBObject("$gte", from).append("$lt", to));
+        // offset of the bucket from the start: elapsed - elapsed % interval
+        DBObject elapsed = new BasicDBObject("$subtract", Arrays.asList("$" + EVENT_DATE, from));
+        DBObject offset = new BasicDBObject("$subtract", Arrays.asList(elapsed,
+                new BasicDBObject("$mod", Arrays.asList(elapsed, interval))));
+        DBObject id = new BasicDBObject("b", offset);
+        if (property != null) {
+            id.put("k", "$" + getFieldName(property));
+        }
+        DBObject group = new BasicDBObject("_id", id).append("n", new BasicDBObject("$sum", 1));
+        List<DBObject> pipeline = Arrays.asList(new BasicDBObject("$match", match),
+                new BasicDBObject("$group", group));
+        Map<String, long[]> counts = new TreeMap<>();
+        for (DBCollection collection : partitioning.getPartitions(from, to)) {
+            AggregationOutput output = collection.aggregate(pipeline, profile.getReadPreference());
+            for (DBObject result : output.results()) {
+                DBObject resultId = (DBObject) result.get("_id");
+                Object key = resultId.get("k");
+                long[] keyCounts = counts.computeIfAbsent(key == null ? "" : key.toString(),
+                        k -> new long[numBuckets]);
+                int bucket = (int) (((Number) resultId.get("b")).longValue() / interval);
+                keyCounts[bucket] += ((Number) result.get("n")).longValue();
+            }
+        }
+        return new EventHistogram(start, interval, counts.keySet().toArray(new String[counts.size()]),
+                counts.values().toArray(new long[counts.size()][]));
     }
 
     @Override
-    public ExtendedInfo newExtendedInfo(Serializable arg0) {
+    public long syncLogCreationEntries(String arg0, String arg1, Boolean arg2) {
         // TODO Auto-generated method stub
-        // return null;
+        // return 0;
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public ExtendedInfo newExtendedInfo(Serializable value) {
+        return new MongoDBExtendedInfo(value);
+    }
+
 }
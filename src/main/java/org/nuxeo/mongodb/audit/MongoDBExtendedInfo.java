@@ -0,0 +1,106 @@
+package org.nuxeo.mongodb.audit;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Date;
+
+import org.apache.commons.lang.SerializationUtils;
+import org.bson.types.Binary;
+import org.nuxeo.ecm.platform.audit.api.ExtendedInfo;
+
+/**
+ * Extended info stored as a native BSON value.
+ * <p>
+ * Strings, booleans, dates, integers, longs, doubles and byte arrays are stored as such, so their BSON type carries
+ * their Java type. Other values are Java-serialized into a binary of a user-defined subtype, only deserialized when
+ * the value is accessed.
+ */
+public class MongoDBExtendedInfo implements ExtendedInfo {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Binary subtype of the Java-serialized values. */
+    protected static final byte SERIALIZED_SUBTYPE = (byte) 0x80;
+
+    protected Long id;
+
+    /** The stored value, until decoded. */
+    protected transient Object bson;
+
+    protected Serializable value;
+
+    protected boolean decoded;
+
+    public MongoDBExtendedInfo(Serializable value) {
+        this.value = value;
+        decoded = true;
+    }
+
+    protected MongoDBExtendedInfo() {
+    }
+
+    /**
+     * Wraps a stored value, decoded on first access.
+     */
+    public static MongoDBExtendedInfo fromBSON(Object bson) {
+        MongoDBExtendedInfo info = new MongoDBExtendedInfo();
+        info.bson = bson;
+        return info;
+    }
+
+    /**
+     * Gets the value to store.
+     */
+    public Object toBSON() {
+        if (!decoded) {
+            return bson;
+        }
+        if (value == null || value instanceof String || value instanceof Boolean || value instanceof Date
+                || value instanceof Integer || value instanceof Long || value instanceof Double
+                || value instanceof byte[]) {
+            return value;
+        }
+        return new Binary(SERIALIZED_SUBTYPE, SerializationUtils.serialize(value));
+    }
+
+    @Override
+    public Serializable getSerializableValue() {
+        if (!decoded) {
+            if (bson instanceof Binary && ((Binary) bson).getType() == SERIALIZED_SUBTYPE) {
+                value = (Serializable) SerializationUtils.deserialize(((Binary) bson).getData());
+            } else {
+                value = (Serializable) bson;
+            }
+            bson = null;
+            decoded = true;
+        }
+        return value;
+    }
+
+    @Override
+    public <T> T getValue(Class<T> clazz) {
+        return clazz.cast(getSerializableValue());
+    }
+
+    @Override
+    public Long getId() {
+        return id;
+    }
+
+    @Override
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getSerializableValue();
+        out.defaultWriteObject();
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(getSerializableValue());
+    }
+
+}
@@ -0,0 +1,168 @@
+package org.nuxeo.mongodb.audit;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.nuxeo.ecm.platform.audit.api.ExtendedInfo;
+import org.nuxeo.ecm.platform.audit.api.LogEntry;
+import org.nuxeo.ecm.platform.audit.impl.LogEntryImpl;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Log entry read from MongoDB, and its BSON mapping.
+ * <p>
+ * Entries are stored with short field names and native BSON types, null fields being omitted. Extended infos are
+ * stored as a sub-document of native values, see {@link MongoDBExtendedInfo}, and only decoded when they are accessed.
+ */
+public class MongoDBLogEntry extends LogEntryImpl {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String ID = "_id";
+
+    public static final String EVENT_ID = "e";
+
+    public static final String EVENT_DATE = "d";
+
+    public static final String LOG_DATE = "l";
+
+    public static final String PRINCIPAL_NAME = "p";
+
+    public static final String CATEGORY = "c";
+
+    public static final String COMMENT = "m";
+
+    public static final String DOC_UUID = "u";
+
+    public static final String DOC_PATH = "dp";
+
+    public static final String DOC_TYPE = "dt";
+
+    public static final String DOC_LIFE_CYCLE = "lc";
+
+    public static final String REPOSITORY_ID = "r";
+
+    public static final String EXTENDED_INFOS = "x";
+
+    /** The stored extended infos, until decoded. */
+    protected transient DBObject dbInfos;
+
+    @Override
+    public Map<String, ExtendedInfo> getExtendedInfos() {
+        if (dbInfos != null) {
+            Map<String, ExtendedInfo> infos = new HashMap<>();
+            for (String key : dbInfos.keySet()) {
+                infos.put(key, MongoDBExtendedInfo.fromBSON(dbInfos.get(key)));
+            }
+            dbInfos = null;
+            super.setExtendedInfos(infos);
+        }
+        return super.getExtendedInfos();
+    }
+
+    @Override
+    public void setExtendedInfos(Map<String, ExtendedInfo> infos) {
+        dbInfos = null;
+        super.setExtendedInfos(infos);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getExtendedInfos();
+        out.defaultWriteObject();
+    }
+
+    /**
+     * Gets the field storing a log entry property.
+     *
+     * @return the field, or {@code null} if the property is unknown
+     */
+    public static String getFieldName(String property) {
+        switch (property) {
+        case "id":
+            return ID;
+        case "eventId":
+            return EVENT_ID;
+        case "eventDate":
+            return EVENT_DATE;
+        case "logDate":
+            return LOG_DATE;
+        case "principalName":
+            return PRINCIPAL_NAME;
+        case "category":
+            return CATEGORY;
+        case "comment":
+            return COMMENT;
+        case "docUUID":
+            return DOC_UUID;
+        case "docPath":
+            return DOC_PATH;
+        case "docType":
+            return DOC_TYPE;
+        case "docLifeCycle":
+            return DOC_LIFE_CYCLE;
+        case "repositoryId":
+            return REPOSITORY_ID;
+        default:
+            return null;
+        }
+    }
+
+    public static DBObject toDBObject(LogEntry entry) {
+        DBObject dbEntry = new BasicDBObject(ID, entry.getId());
+        put(dbEntry, EVENT_ID, entry.getEventId());
+        put(dbEntry, EVENT_DATE, entry.getEventDate());
+        put(dbEntry, LOG_DATE, entry.getLogDate());
+        put(dbEntry, PRINCIPAL_NAME, entry.getPrincipalName());
+        put(dbEntry, CATEGORY, entry.getCategory());
+        put(dbEntry, COMMENT, entry.getComment());
+        put(dbEntry, DOC_UUID, entry.getDocUUID());
+        put(dbEntry, DOC_PATH, entry.getDocPath());
+        put(dbEntry, DOC_TYPE, entry.getDocType());
+        put(dbEntry, DOC_LIFE_CYCLE, entry.getDocLifeCycle());
+        put(dbEntry, REPOSITORY_ID, entry.getRepositoryId());
+        Map<String, ExtendedInfo> infos = entry.getExtendedInfos();
+        if (infos != null && !infos.isEmpty()) {
+            DBObject dbInfos = new BasicDBObject();
+            for (Map.Entry<String, ExtendedInfo> info : infos.entrySet()) {
+                ExtendedInfo value = info.getValue();
+                if (value instanceof MongoDBExtendedInfo) {
+                    dbInfos.put(info.getKey(), ((MongoDBExtendedInfo) value).toBSON());
+                } else {
+                    dbInfos.put(info.getKey(), new MongoDBExtendedInfo(value.getSerializableValue()).toBSON());
+                }
+            }
+            dbEntry.put(EXTENDED_INFOS, dbInfos);
+        }
+        return dbEntry;
+    }
+
+    protected static void put(DBObject dbEntry, String field, Object value) {
+        if (value != null) {
+            dbEntry.put(field, value);
+        }
+    }
+
+    public static MongoDBLogEntry fromDBObject(DBObject dbEntry) {
+        MongoDBLogEntry entry = new MongoDBLogEntry();
+        entry.setId(((Number) dbEntry.get(ID)).longValue());
+        entry.setEventId((String) dbEntry.get(EVENT_ID));
+        entry.setEventDate((Date) dbEntry.get(EVENT_DATE));
+        entry.setLogDate((Date) dbEntry.get(LOG_DATE));
+        entry.setPrincipalName((String) dbEntry.get(PRINCIPAL_NAME));
+        entry.setCategory((String) dbEntry.get(CATEGORY));
+        entry.setComment((String) dbEntry.get(COMMENT));
+        entry.setDocUUID((String) dbEntry.get(DOC_UUID));
+        entry.setDocPath((String) dbEntry.get(DOC_PATH));
+        entry.setDocType((String) dbEntry.get(DOC_TYPE));
+        entry.setDocLifeCycle((String) dbEntry.get(DOC_LIFE_CYCLE));
+        entry.setRepositoryId((String) dbEntry.get(REPOSITORY_ID));
+        entry.dbInfos = (DBObject) dbEntry.get(EXTENDED_INFOS);
+        return entry;
+    }
+
+}
@@ -1,15 +1,30 @@
 package org.nuxeo.mongodb.blob;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-
-import org.apache.commons.io.IOUtils;
-import org.nuxeo.common.file.FileCache;
-import org.nuxeo.common.file.LRUFileCache;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bson.types.ObjectId;
+import org.nuxeo.common.Environment;
 import org.nuxeo.common.utils.SizeUtils;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.NuxeoException;
@@ -22,14 +37,20 @@ import org.nuxeo.ecm.core.blob.binary.BinaryGarbageCollector;
 import org.nuxeo.ecm.core.blob.binary.BinaryManagerStatus;
 import org.nuxeo.ecm.core.blob.binary.FileStorage;
 import org.nuxeo.ecm.core.model.Document;
+import org.nuxeo.mongodb.client.MongoDBClientRegistry;
+import org.nuxeo.mongodb.client.MongoDBProfile;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
-import com.mongodb.MongoClientURI;
-import com.mongodb.ServerAddress;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
 import com.mongodb.gridfs.GridFS;
-import com.mongodb.gridfs.GridFSDBFile;
 import com.mongodb.gridfs.GridFSInputFile;
 
 /**
@@ -37,18 +58,93 @@ import com.mongodb.gridfs.GridFSInputFile;
  */
 public class GridFSBinaryManager extends AbstractBinaryManager implements BlobProvider {
 
+    private static final Log log = LogFactory.getLog(GridFSBinaryManager.class);
+
     protected MongoClient client;
 
     protected GridFS gridFS;
 
     protected File cachedir;
 
-    protected FileCache fileCache;
+    protected GridFSBlobCache blobCache;
 
     protected String bucketName;
 
     protected long cacheSize = 1024 * 1024 * 25;
 
+    protected int stagingThreshold = 1024 * 1024;
+
+    protected int chunkSize = GridFS.DEFAULT_CHUNKSIZE;
+
+    protected String digestAlgorithm = DEFAULT_DIGEST_ALGORITHM;
+
+    protected int prefetchDepth = 4;
+
+    protected ExecutorService prefetchExecutor;
+
+    protected int uploadBatchSize = 16;
+
+    protected int uploadParallelism = 1;
+
+    protected ExecutorService uploadExecutor;
+
+    protected ExecutorService downloadExecutor;
+
+    protected int metadataCacheSize = 10000;
+
+    protected long metadataCacheTTL = 60 * 1000;
+
+    protected int gcMarkBatchSize = 1000;
+
+    protected int gcSweepBatchSize = 1000;
+
+    protected String gcMode = GC_MODE_METADATA;
+
+    protected long gcOpsPerSecond;
+
+    protected long gcLeaseDuration = 5 * 60 * 1000;
+
+    protected static final String GC_STATE_ID = "gc";
+
+    /** Files document field holding the date of the last upload of an existing content. */
+    public static final String LAST_UPLOAD_DATE = "lastUploadDate";
+
+    /** Prefix of the profile properties of blob reads. */
+    public static final String READ_PROFILE = "read";
+
+    /** Prefix of the profile properties of blob writes. */
+    public static final String WRITE_PROFILE = "write";
+
+    /**
+     * Prefix of the profile properties of the garbage collector. Its writes are always acknowledged: the lease must be
+     * known to be held, and the marks must be applied before the sweep reads them. A weaker write concern is upgraded
+     * to {@code acknowledged}, and its reads always go to the primary.
+     */
+    public static final String GC_PROFILE = "gc";
+
+    protected MongoDBProfile readProfile;
+
+    protected MongoDBProfile writeProfile;
+
+    protected MongoDBProfile gcProfile;
+
+    /** Garbage collector mode writing marks into the files metadata. */
+    public static final String GC_MODE_METADATA = "metadata";
+
+    /** Garbage collector mode keeping marks in memory, without any write during the mark phase. */
+    public static final String GC_MODE_MEMORY = "memory";
+
+    /**
+     * Files documents (id, length and chunk size) by digest, only used by reads. Entries expire after
+     * {@code metadataCacheTTL} since the garbage collector of another node may delete their file.
+     */
+    protected Map<String, CachedFile> fileInfos;
+
+    public static final String DEFAULT_DIGEST_ALGORITHM = "MD5";
+
+    /** Maximum number of digests in a single {@code $in} query. */
+    public static final int BATCH_QUERY_SIZE = 10000;
+
     @Override
     public void initialize(String blobProviderId, Map<String, String> properties) throws IOException {
         super.initialize(blobProviderId, properties);
@@ -62,59 +158,249 @@ public class GridFSBinaryManager extends AbstractBinaryManager implements BlobPr
         if (cacheSizeStr != null) {
             cacheSize = SizeUtils.parseSizeInBytes(cacheSizeStr);
         }
+        String stagingThresholdStr = properties.get("stagingThreshold");
+        if (stagingThresholdStr != null) {
+            stagingThreshold = (int) SizeUtils.parseSizeInBytes(stagingThresholdStr);
+        }
+        String chunkSizeStr = properties.get("chunkSize");
+        if (chunkSizeStr != null) {
+            chunkSize = (int) SizeUtils.parseSizeInBytes(chunkSizeStr);
+        }
+        String digestStr = properties.get("digest");
+        if (digestStr != null) {
+            digestAlgorithm = digestStr;
+        }
+        String prefetchDepthStr = properties.get("prefetchDepth");
+        if (prefetchDepthStr != null) {
+            prefetchDepth = Integer.parseInt(prefetchDepthStr);
+        }
+        String uploadBatchSizeStr = properties.get("uploadBatchSize");
+        if (uploadBatchSizeStr != null) {
+            uploadBatchSize = Integer.parseInt(uploadBatchSizeStr);
+        }
+        String uploadParallelismStr = properties.get("uploadParallelism");
+        if (uploadParallelismStr != null) {
+            uploadParallelism = Integer.parseInt(uploadParallelismStr);
+        }
+        String metadataCacheSizeStr = properties.get("metadataCacheSize");
+        if (metadataCacheSizeStr != null) {
+            metadataCacheSize = Integer.parseInt(metadataCacheSizeStr);
+        }
+        String metadataCacheTTLStr = properties.get("metadataCacheTTL");
+        if (metadataCacheTTLStr != null) {
+            metadataCacheTTL = Long.parseLong(metadataCacheTTLStr) * 1000;
+        }
+        fileInfos = Collections.synchronizedMap(new LinkedHashMap<String, CachedFile>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
 
-        if (server.startsWith("mongodb://")) {
-            client = new MongoClient(new MongoClientURI(server));
-        } else {
-            client = new MongoClient(new ServerAddress(server));
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedFile> eldest) {
+                return size() > metadataCacheSize;
+            }
+        });
+        String gcMarkBatchSizeStr = properties.get("gcMarkBatchSize");
+        if (gcMarkBatchSizeStr != null) {
+            gcMarkBatchSize = Integer.parseInt(gcMarkBatchSizeStr);
+        }
+        String gcSweepBatchSizeStr = properties.get("gcSweepBatchSize");
+        if (gcSweepBatchSizeStr != null) {
+            gcSweepBatchSize = Integer.parseInt(gcSweepBatchSizeStr);
+        }
+        String gcOpsPerSecondStr = properties.get("gcOpsPerSecond");
+        if (gcOpsPerSecondStr != null) {
+            gcOpsPerSecond = Long.parseLong(gcOpsPerSecondStr);
         }
+        String gcLeaseDurationStr = properties.get("gcLeaseDuration");
+        if (gcLeaseDurationStr != null) {
+            gcLeaseDuration = Long.parseLong(gcLeaseDurationStr) * 1000;
+        }
+        String gcModeStr = properties.get("gcMode");
+        if (gcModeStr != null) {
+            if (!GC_MODE_METADATA.equals(gcModeStr) && !GC_MODE_MEMORY.equals(gcModeStr)) {
+                throw new NuxeoException("Unknown GC mode: " + gcModeStr);
+            }
+            gcMode = gcModeStr;
+        }
+        String prefetchThreadsStr = properties.get("prefetchThreads");
+        int prefetchThreads = prefetchThreadsStr == null ? 4 : Integer.parseInt(prefetchThreadsStr);
+        try {
+            MessageDigest.getInstance(digestAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new NuxeoException("Unknown digest algorithm: " + digestAlgorithm, e);
+        }
+
+        client = MongoDBClientRegistry.acquire(server, properties);
+        MongoDBProfile defaults = new MongoDBProfile(client.getWriteConcern(), client.getReadPreference());
+        readProfile = MongoDBProfile.fromProperties(properties, READ_PROFILE, defaults);
+        writeProfile = MongoDBProfile.fromProperties(properties, WRITE_PROFILE, defaults);
+        // the sweep must see all the marks, the garbage collector always reads from the primary
+        WriteConcern gcWriteConcern = MongoDBProfile.fromProperties(properties, GC_PROFILE, defaults).getWriteConcern();
+        if (!gcWriteConcern.isAcknowledged()) {
+            log.warn("Unacknowledged GC writes would let the sweep delete marked files, using acknowledged writes for "
+                    + "the GC of bucket " + bucketName);
+            gcWriteConcern = WriteConcern.ACKNOWLEDGED;
+        }
+        gcProfile = new MongoDBProfile(gcWriteConcern, ReadPreference.primary());
         gridFS = new GridFS(client.getDB(dbname), bucketName);
+        createIndexes();
 
-        cachedir = File.createTempFile("nxbincache.", "", null);
-        cachedir.delete();
-        cachedir.mkdir();
-        fileCache = new LRUFileCache(cachedir, cacheSize);
+        String cacheDirStr = properties.get("cacheDir");
+        if (cacheDirStr != null) {
+            cachedir = new File(cacheDirStr);
+        } else if (Environment.getDefault() != null) {
+            cachedir = new File(new File(Environment.getDefault().getData(), "gridfscache"), blobProviderId);
+        } else {
+            cachedir = File.createTempFile("nxbincache.", "", null);
+            cachedir.delete();
+        }
+        cachedir.mkdirs();
+        downloadExecutor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "GridFS-download-" + bucketName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        blobCache = new GridFSBlobCache(cachedir, cacheSize, downloadExecutor);
+
+        if (prefetchDepth > 0) {
+            prefetchExecutor = Executors.newFixedThreadPool(prefetchThreads, r -> {
+                Thread thread = new Thread(r, "GridFS-prefetch-" + bucketName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        if (uploadParallelism > 1) {
+            uploadExecutor = Executors.newFixedThreadPool(uploadParallelism, r -> {
+                Thread thread = new Thread(r, "GridFS-upload-" + bucketName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
 
         garbageCollector = new GridFSBinaryGarbageCollector();
     }
 
     @Override
     public void close() {
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+        }
+        if (uploadExecutor != null) {
+            uploadExecutor.shutdownNow();
+        }
+        if (downloadExecutor != null) {
+            downloadExecutor.shutdownNow();
+        }
         if (client != null) {
-            client.close();
+            MongoDBClientRegistry.release(client);
+            client = null;
         }
     }
 
-    protected class GridFSBinary extends Binary {
+    public class GridFSBinary extends Binary {
 
         private static final long serialVersionUID = 1L;
 
         protected final long length;
 
+        /** The id of the files document, {@code null} until known. */
+        protected Object fileId;
+
+        protected int fileChunkSize;
+
         protected GridFSBinary(String digest, long length, String blobProviderId) {
             super(digest, blobProviderId);
             this.length = length;
         }
 
+        protected GridFSBinary(String digest, DBObject dbFile, String blobProviderId) {
+            this(digest, ((Number) dbFile.get("length")).longValue(), blobProviderId);
+            fileId = dbFile.get("_id");
+            Object chunkSizeValue = dbFile.get("chunkSize");
+            if (chunkSizeValue != null) {
+                fileChunkSize = ((Number) chunkSizeValue).intValue();
+            }
+        }
+
         @Override
         public long getLength() {
             return length;
         }
 
+        /**
+         * Gets a stream on the binary. Concurrent readers of a binary missing from the local cache share a single
+         * download into the cache, unless the binary is too big to be cached.
+         */
         @Override
         public InputStream getStream() {
-            GridFSDBFile dbFile = gridFS.findOne(digest);
-            return dbFile.getInputStream();
+            if (length > cacheSize) {
+                return getStream(0, length);
+            }
+            try {
+                return blobCache.getStream(digest, length, offset -> getGridFSStream(offset, length - offset));
+            } catch (IOException e) {
+                throw new NuxeoException("Unable to read GridFS file: " + digest, e);
+            }
+        }
+
+        /**
+         * Gets a stream over a range of the binary, only fetching the chunks overlapping that range.
+         * <p>
+         * The returned stream also implements {@link InputStream#skip} without fetching the skipped chunks.
+         */
+        public InputStream getStream(long offset, long rangeLength) {
+            if (offset < 0 || rangeLength < 0 || offset + rangeLength > length) {
+                throw new IllegalArgumentException("Invalid range " + offset + "+" + rangeLength + " for binary "
+                        + digest + " of length " + length);
+            }
+            File cached = blobCache.getFile(digest);
+            if (cached != null) {
+                try {
+                    FileInputStream in = new FileInputStream(cached);
+                    in.getChannel().position(offset);
+                    return new BoundedInputStream(in, rangeLength);
+                } catch (IOException e) {
+                    // evicted meanwhile, read from GridFS
+                }
+            }
+            try {
+                InputStream download = blobCache.getDownloadStream(digest, length,
+                        start -> getGridFSStream(start, length - start));
+                if (download != null) {
+                    // does not wait for the download of the skipped data
+                    if (download.skip(offset) == offset) {
+                        return new BoundedInputStream(download, rangeLength);
+                    }
+                    download.close();
+                }
+            } catch (IOException e) {
+                // failed download, read from GridFS
+            }
+            return getGridFSStream(offset, rangeLength);
+        }
+
+        protected InputStream getGridFSStream(long offset, long rangeLength) {
+            if (fileId == null || fileChunkSize == 0) {
+                DBObject dbFile = findFile(digest);
+                if (dbFile == null) {
+                    throw new NuxeoException("Missing GridFS file: " + digest);
+                }
+                fileId = dbFile.get("_id");
+                fileChunkSize = ((Number) dbFile.get("chunkSize")).intValue();
+            }
+            GridFSChunkInputStream stream = new GridFSChunkInputStream(getChunksCollection(), fileId, fileChunkSize,
+                    offset, offset + rangeLength, readProfile.getReadPreference());
+            if (prefetchExecutor != null && rangeLength > fileChunkSize) {
+                return new GridFSPrefetchInputStream(stream, prefetchExecutor, prefetchDepth);
+            }
+            return stream;
         }
 
         @Override
         public File getFile() {
             // this API is a pain to implement on GridFS !
-            if (file == null) {
+            if (file == null || !file.exists()) {
                 try {
-                    file = fileCache.getTempFile();
-                    GridFSDBFile dbFile = gridFS.findOne(digest);
-                    IOUtils.copy(dbFile.getInputStream(), new FileOutputStream(file));
+                    file = blobCache.getFile(digest, offset -> getGridFSStream(offset, length - offset));
                 } catch (IOException e) {
                     throw new NuxeoException("Unable to extract file from GridFS Stream", e);
                 }
@@ -125,34 +411,224 @@ public class GridFSBinaryManager extends AbstractBinaryManager implements BlobPr
 
     @Override
     protected Binary getBinary(InputStream stream) throws IOException {
+        // compute the digest before writing anything, so that duplicates never reach GridFS
+        try (GridFSStagedContent staged = GridFSStagedContent.stage(stream, digestAlgorithm, stagingThreshold)) {
+            String digest = staged.getDigest();
+            // never trust the cache here, the file may have been deleted by the garbage collector of another node
+            DBObject dbFile = queryFile(digest, ReadPreference.primary());
+            if (dbFile != null && touch(dbFile)) {
+                fileInfos.put(digest, new CachedFile(dbFile));
+            } else {
+                dbFile = store(staged);
+            }
+            return new GridFSBinary(digest, dbFile, blobProviderId);
+        }
+    }
 
-        GridFSInputFile gFile = gridFS.createFile(stream, true);
-        gFile.save();
-        String digest = gFile.getMD5();
-        long length = gFile.getLength();
+    /**
+     * Records that an existing file was uploaded again, so that a garbage collector run started before this upload
+     * does not delete it, see {@link GridFSBinaryGarbageCollector#stop}.
+     *
+     * @return {@code false} if the file was deleted meanwhile
+     */
+    protected boolean touch(DBObject dbFile) {
+        WriteResult result = getFilesCollection().update(new BasicDBObject("_id", dbFile.get("_id")),
+                new BasicDBObject("$set", new BasicDBObject(LAST_UPLOAD_DATE, new Date())), false, false,
+                gcProfile.getWriteConcern());
+        return result.getN() > 0;
+    }
 
-        // check if the file already existed ?
-        GridFSDBFile existingFile =  gridFS.findOne(digest);
-        if (existingFile==null) {
-            gFile.setFilename(digest);
-            gFile.save();
-        } else {
-            gridFS.remove(gFile);
+    /**
+     * Writes the chunks then the files document of a staged content. Readers never see a partial file since the files
+     * document is only inserted once all the chunks are written. If the same content was stored meanwhile, the
+     * insertion of the files document fails on the unique filename index and the chunks just written are removed.
+     * <p>
+     * The digest is computed client-side, so unlike {@link GridFSInputFile} this does not need a filemd5 command. The
+     * md5 field is only filled when the digest is an MD5, other algorithms are only known through the filename.
+     */
+    protected DBObject store(GridFSStagedContent staged) throws IOException {
+        ObjectId fileId = new ObjectId();
+        try (InputStream in = staged.getStream()) {
+            getChunkWriter().write(fileId, in);
+        }
+        DBObject file = new BasicDBObject("_id", fileId);
+        file.put("filename", staged.getDigest());
+        file.put("length", staged.getLength());
+        file.put("chunkSize", chunkSize);
+        file.put("uploadDate", new Date());
+        if (DEFAULT_DIGEST_ALGORITHM.equals(digestAlgorithm)) {
+            file.put("md5", staged.getDigest());
         }
+        try {
+            getFilesCollection().insert(file, writeProfile.getWriteConcern());
+        } catch (MongoException e) {
+            if (!isDuplicateKey(e)) {
+                throw e;
+            }
+            // stored concurrently by another upload, ours is not needed
+            getChunksCollection().remove(new BasicDBObject("files_id", fileId), writeProfile.getWriteConcern());
+            DBObject existing = queryFile(staged.getDigest(), ReadPreference.primary());
+            if (existing == null) {
+                throw e;
+            }
+            fileInfos.put(staged.getDigest(), new CachedFile(existing));
+            return existing;
+        }
+        fileInfos.put(staged.getDigest(), new CachedFile(file));
+        return file;
+    }
 
-        return new GridFSBinary(digest, length, blobProviderId);
+    /**
+     * Creates the bucket indexes. The unique index on the filename is what keeps deduplication correct when the same
+     * content is uploaded concurrently, see {@link #store}.
+     */
+    protected void createIndexes() {
+        DBObject unique = new BasicDBObject("unique", true);
+        getChunksCollection().createIndex(new BasicDBObject("files_id", 1).append("n", 1), unique);
+        try {
+            getFilesCollection().createIndex(new BasicDBObject("filename", 1), unique);
+        } catch (MongoException e) {
+            if (!isDuplicateKey(e)) {
+                throw e;
+            }
+            log.warn("Bucket " + bucketName + " holds duplicate filenames, concurrent uploads of the same content "
+                    + "may create more of them until they are removed");
+        }
+    }
+
+    protected GridFSChunkWriter getChunkWriter() {
+        return new GridFSChunkWriter(getChunksCollection(), chunkSize, uploadBatchSize, uploadExecutor,
+                uploadParallelism, writeProfile.getWriteConcern());
+    }
+
+    /**
+     * Finds the id, length and chunk size of a files document for a read, going through the metadata cache.
+     * <p>
+     * A file missing from a secondary may not be replicated yet, so it is looked up again on the primary before being
+     * reported as missing.
+     */
+    protected DBObject findFile(String digest) {
+        DBObject dbFile = getCachedFile(digest);
+        if (dbFile == null) {
+            ReadPreference readPreference = readProfile.getReadPreference();
+            dbFile = queryFile(digest, readPreference);
+            if (dbFile == null && !ReadPreference.primary().equals(readPreference)) {
+                dbFile = queryFile(digest, ReadPreference.primary());
+            }
+            if (dbFile != null) {
+                fileInfos.put(digest, new CachedFile(dbFile));
+            }
+        }
+        return dbFile;
+    }
+
+    protected DBObject queryFile(String digest, ReadPreference readPreference) {
+        DBObject keys = new BasicDBObject("_id", 1).append("length", 1).append("chunkSize", 1);
+        return getFilesCollection().findOne(new BasicDBObject("filename", digest), keys, readPreference);
+    }
+
+    /**
+     * Gets a files document from the metadata cache.
+     *
+     * @return the files document, or {@code null} if it is not cached or expired
+     */
+    protected DBObject getCachedFile(String digest) {
+        CachedFile cached = fileInfos.get(digest);
+        if (cached == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - cached.time > metadataCacheTTL) {
+            fileInfos.remove(digest, cached);
+            return null;
+        }
+        return cached.dbFile;
+    }
+
+    protected static class CachedFile {
+
+        protected final DBObject dbFile;
+
+        protected final long time = System.currentTimeMillis();
+
+        protected CachedFile(DBObject dbFile) {
+            this.dbFile = dbFile;
+        }
+    }
+
+    protected DBCollection getFilesCollection() {
+        return gridFS.getDB().getCollection(bucketName + ".files");
+    }
+
+    protected DBCollection getChunksCollection() {
+        return gridFS.getDB().getCollection(bucketName + ".chunks");
+    }
 
+    protected static boolean isDuplicateKey(MongoException e) {
+        return e.getCode() == 11000 || e.getCode() == 11001;
+    }
+
+    /**
+     * Collection holding the state of the garbage collector runs, shared by all the nodes of a cluster.
+     */
+    protected DBCollection getGCStateCollection() {
+        return gridFS.getDB().getCollection(bucketName + ".gc");
     }
 
     @Override
     public Binary getBinary(String digest) {
-        GridFSDBFile dbFile = gridFS.findOne(digest);
+        DBObject dbFile = findFile(digest);
         if (dbFile != null) {
-            return new GridFSBinary(digest, dbFile.getLength(), blobProviderId);
+            return new GridFSBinary(digest, dbFile, blobProviderId);
         }
         return null;
     }
 
+    /**
+     * Gets the binaries for several digests at once, using one {@code $in} query per {@link #BATCH_QUERY_SIZE}
+     * digests not already in the metadata cache. As in {@link #findFile}, digests missing from a secondary are looked
+     * up again on the primary.
+     *
+     * @return the binaries by digest, without entries for the digests that are not stored
+     */
+    public Map<String, GridFSBinary> getBinaries(Collection<String> digests) {
+        Map<String, GridFSBinary> binaries = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String digest : digests) {
+            DBObject dbFile = getCachedFile(digest);
+            if (dbFile != null) {
+                binaries.put(digest, new GridFSBinary(digest, dbFile, blobProviderId));
+            } else {
+                missing.add(digest);
+            }
+        }
+        ReadPreference readPreference = readProfile.getReadPreference();
+        queryFiles(missing, readPreference, binaries);
+        if (!ReadPreference.primary().equals(readPreference)) {
+            missing.removeAll(binaries.keySet());
+            queryFiles(missing, ReadPreference.primary(), binaries);
+        }
+        return binaries;
+    }
+
+    protected void queryFiles(List<String> digests, ReadPreference readPreference,
+            Map<String, GridFSBinary> binaries) {
+        DBObject keys = new BasicDBObject("filename", 1).append("length", 1).append("chunkSize", 1);
+        for (int i = 0; i < digests.size(); i += BATCH_QUERY_SIZE) {
+            List<String> batch = digests.subList(i, Math.min(i + BATCH_QUERY_SIZE, digests.size()));
+            DBObject query = new BasicDBObject("filename", new BasicDBObject("$in", batch));
+            DBCursor cursor = getFilesCollection().find(query, keys).setReadPreference(readPreference);
+            try {
+                for (DBObject dbFile : cursor) {
+                    String digest = (String) dbFile.get("filename");
+                    fileInfos.put(digest, new CachedFile(dbFile));
+                    binaries.put(digest, new GridFSBinary(digest, dbFile, blobProviderId));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
     @Override
     public Blob readBlob(BlobManager.BlobInfo blobInfo) throws IOException {
         // just delegate to avoid copy/pasting code
@@ -180,6 +656,26 @@ public class GridFSBinaryManager extends AbstractBinaryManager implements BlobPr
 
         protected String msKey;
 
+        protected final List<String> marks = new ArrayList<>();
+
+        /** The marks kept in memory, in {@link #GC_MODE_MEMORY} mode. */
+        protected GridFSDigestSet markSet;
+
+        protected final String nodeId = UUID.randomUUID().toString();
+
+        /** The {@code _id} of the last files document swept. */
+        protected Object lastId;
+
+        protected long opsStartTime;
+
+        protected long ops;
+
+        /** The time of the last renewal of the lease. */
+        protected long checkpointTime;
+
+        /** The start of the run, kept when it is resumed. Files uploaded since are not swept. */
+        protected Date runStart;
+
         @Override
         public String getId() {
             return "gridfs:" + bucketName;
@@ -195,47 +691,305 @@ public class GridFSBinaryManager extends AbstractBinaryManager implements BlobPr
             return startTime != 0;
         }
 
+        /**
+         * Marks a digest. The lease is renewed during the mark phase as well, in particular in
+         * {@link #GC_MODE_MEMORY} mode where nothing is written before the sweep.
+         */
         @Override
-        public void mark(String digest) {
-            GridFSDBFile dbFile = gridFS.findOne(digest);
-            if (dbFile != null) {
-                DBObject meta = new BasicDBObject();
-                meta.put(msKey, true);
-                dbFile.setMetaData(meta);
-                dbFile.save();
-                status.numBinaries+=1;
-                status.sizeBinaries+= dbFile.getLength();
+        public synchronized void mark(String digest) {
+            if (markSet != null) {
+                markSet.add(digest);
+            } else {
+                marks.add(digest);
+                if (marks.size() >= gcMarkBatchSize) {
+                    flushMarks();
+                }
+            }
+            if (System.currentTimeMillis() - checkpointTime > gcLeaseDuration / 3) {
+                checkpoint();
             }
         }
 
+        /**
+         * Marks the pending digests with a single bulk write, only setting the mark key in the files metadata.
+         * <p>
+         * The files not marked yet are counted first, so that digests marked several times are only counted once, and
+         * so that a resumed run does not count again the files marked before the interruption.
+         */
+        protected synchronized void flushMarks() {
+            if (marks.isEmpty()) {
+                return;
+            }
+            String markField = "metadata." + msKey;
+            DBObject query = new BasicDBObject("filename", new BasicDBObject("$in", marks));
+            query.put(markField, new BasicDBObject("$exists", false));
+            DBCollection files = getFilesCollection();
+            DBCursor cursor = files.find(query, new BasicDBObject("length", 1)).setReadPreference(
+                    gcProfile.getReadPreference());
+            try {
+                for (DBObject dbFile : cursor) {
+                    status.numBinaries += 1;
+                    status.sizeBinaries += ((Number) dbFile.get("length")).longValue();
+                }
+            } finally {
+                cursor.close();
+            }
+            BulkWriteOperation bulk = files.initializeUnorderedBulkOperation();
+            // a null metadata cannot be traversed by $set, replace it
+            DBObject nullMetadata = new BasicDBObject(query.toMap());
+            nullMetadata.put("metadata", null);
+            bulk.find(nullMetadata).update(
+                    new BasicDBObject("$set", new BasicDBObject("metadata", new BasicDBObject(msKey, true))));
+            DBObject existingMetadata = new BasicDBObject(query.toMap());
+            existingMetadata.put("metadata", new BasicDBObject("$ne", null));
+            bulk.find(existingMetadata).update(new BasicDBObject("$set", new BasicDBObject(markField, true)));
+            bulk.execute(gcProfile.getWriteConcern());
+            throttle(marks.size());
+            marks.clear();
+            checkpoint();
+        }
+
         @Override
         public void start() {
 
             if (startTime != 0) {
                 throw new RuntimeException("Already started");
             }
+            DBObject state = acquireLease();
             startTime = System.currentTimeMillis();
             status = new BinaryManagerStatus();
-
-            msKey = MARK_KEY_PREFIX + System.currentTimeMillis();
+            marks.clear();
+            markSet = GC_MODE_MEMORY.equals(gcMode) ? new GridFSDigestSet() : null;
+            opsStartTime = startTime;
+            ops = 0;
+            // the lease was just taken
+            checkpointTime = startTime;
+
+            if (state.get("msKey") != null) {
+                // resume the run interrupted on this or another node
+                msKey = (String) state.get("msKey");
+                lastId = state.get("lastId");
+                runStart = (Date) state.get("runStart");
+                if (runStart == null) {
+                    // state written without it, the mark key holds the start time
+                    runStart = new Date(Long.parseLong(msKey.substring(MARK_KEY_PREFIX.length())));
+                }
+                status.numBinaries = getLong(state, "numBinaries");
+                status.sizeBinaries = getLong(state, "sizeBinaries");
+                status.numBinariesGC = getLong(state, "numBinariesGC");
+                status.sizeBinariesGC = getLong(state, "sizeBinariesGC");
+                log.info("Resuming GC of " + getId() + " with mark key " + msKey);
+            } else {
+                msKey = MARK_KEY_PREFIX + startTime;
+                runStart = new Date(startTime);
+                lastId = null;
+                checkpoint();
+            }
         }
 
+        /**
+         * Sweeps the files not marked during this run, streaming the files collection by {@code _id} and deleting by
+         * batches. The position of the sweep is checkpointed after each batch, so that an interrupted run resumes
+         * where it stopped.
+         * <p>
+         * Files uploaded since the start of the run, or uploaded again as duplicates (see
+         * {@link GridFSBinaryManager#touch}), are kept: the documents referencing them may have been created after
+         * their repository was marked. Their dates come from the clocks of the uploading nodes, which must be in sync
+         * with the node running the garbage collector.
+         * <p>
+         * Mark keys left by previous runs are removed at the same time, so that files metadata does not grow with each
+         * run. In {@link #GC_MODE_MEMORY} mode, marks are only looked up in memory and counted during the sweep.
+         */
         @Override
         public void stop(boolean delete) {
-            BasicDBObject query = new BasicDBObject("metadata." + msKey, new BasicDBObject("$exists", false));
-            List<GridFSDBFile> files = gridFS.find(query);
-            for (GridFSDBFile file : files) {
-                status.numBinariesGC+=1;
-                status.sizeBinariesGC+= file.getLength();
-                if (delete) {
-                    gridFS.remove(file);
+            flushMarks();
+            if (markSet != null) {
+                markSet.seal();
+            }
+            DBCollection files = getFilesCollection();
+            DBObject query = new BasicDBObject();
+            if (lastId != null) {
+                query.put("_id", new BasicDBObject("$gt", lastId));
+            }
+            DBObject keys = new BasicDBObject("filename", 1).append("length", 1).append("metadata", 1);
+            keys.put("uploadDate", 1);
+            keys.put(LAST_UPLOAD_DATE, 1);
+            Set<String> staleKeys = new HashSet<>();
+            List<Object> orphans = new ArrayList<>();
+            int scanned = 0;
+            DBCursor cursor = files.find(query, keys).sort(new BasicDBObject("_id", 1)).batchSize(gcSweepBatchSize)
+                    .setReadPreference(gcProfile.getReadPreference());
+            try {
+                for (DBObject dbFile : cursor) {
+                    DBObject metadata = (DBObject) dbFile.get("metadata");
+                    if (metadata != null) {
+                        for (String key : metadata.keySet()) {
+                            if (key.startsWith(MARK_KEY_PREFIX) && !key.equals(msKey)) {
+                                staleKeys.add(key);
+                            }
+                        }
+                    }
+                    if (scanned >= gcSweepBatchSize) {
+                        // everything up to lastId is processed
+                        deleteFiles(orphans);
+                        throttle(scanned);
+                        checkpoint();
+                        scanned = 0;
+                    }
+                    lastId = dbFile.get("_id");
+                    scanned++;
+                    long length = ((Number) dbFile.get("length")).longValue();
+                    if (markSet != null) {
+                        if (markSet.contains((String) dbFile.get("filename"))) {
+                            status.numBinaries += 1;
+                            status.sizeBinaries += length;
+                            continue;
+                        }
+                    } else if (metadata != null && metadata.get(msKey) != null) {
+                        continue;
+                    }
+                    if (isUploadedSince(dbFile, "uploadDate") || isUploadedSince(dbFile, LAST_UPLOAD_DATE)) {
+                        continue;
+                    }
+                    status.numBinariesGC += 1;
+                    status.sizeBinariesGC += length;
+                    if (delete) {
+                        fileInfos.remove(dbFile.get("filename"));
+                        orphans.add(dbFile.get("_id"));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            deleteFiles(orphans);
+            removeMarkKeys(staleKeys);
+            releaseLease();
+            status.gcDuration = System.currentTimeMillis() - startTime;
+            markSet = null;
+            startTime = 0;
+        }
+
+        /**
+         * Takes the cluster-wide GC lease, unless another node holds a lease that has not expired.
+         *
+         * @return the persisted state of the run, holding the state of an interrupted run if any
+         */
+        protected DBObject acquireLease() {
+            Date now = new Date();
+            DBObject query = new BasicDBObject("_id", GC_STATE_ID);
+            List<DBObject> available = new ArrayList<>();
+            available.add(new BasicDBObject("owner", nodeId));
+            available.add(new BasicDBObject("leaseUntil", new BasicDBObject("$lt", now)));
+            query.put("$or", available);
+            DBObject update = new BasicDBObject("$set", new BasicDBObject("owner", nodeId).append("leaseUntil",
+                    new Date(now.getTime() + gcLeaseDuration)));
+            try {
+                return getGCStateCollection().findAndModify(query, null, null, false, update, true, true);
+            } catch (MongoException e) {
+                if (!isDuplicateKey(e)) {
+                    throw e;
+                }
+                // the upsert failed, the lease is held by another node
+                DBObject state = getGCStateCollection().findOne(new BasicDBObject("_id", GC_STATE_ID), null,
+                        gcProfile.getReadPreference());
+                throw new NuxeoException("GC of " + getId() + " already in progress on node "
+                        + (state == null ? null : state.get("owner")), e);
+            }
+        }
+
+        /**
+         * Persists the state of the run and renews the lease.
+         */
+        protected void checkpoint() {
+            checkpointTime = System.currentTimeMillis();
+            DBObject set = new BasicDBObject("leaseUntil", new Date(checkpointTime + gcLeaseDuration));
+            set.put("msKey", msKey);
+            set.put("runStart", runStart);
+            set.put("lastId", lastId);
+            set.put("numBinaries", status.numBinaries);
+            set.put("sizeBinaries", status.sizeBinaries);
+            set.put("numBinariesGC", status.numBinariesGC);
+            set.put("sizeBinariesGC", status.sizeBinariesGC);
+            DBObject query = new BasicDBObject("_id", GC_STATE_ID).append("owner", nodeId);
+            WriteResult result = getGCStateCollection().update(query, new BasicDBObject("$set", set), false, false,
+                    gcProfile.getWriteConcern());
+            if (result.getN() == 0) {
+                startTime = 0;
+                throw new NuxeoException("GC of " + getId() + " lost its lease");
+            }
+        }
+
+        protected void releaseLease() {
+            getGCStateCollection().remove(new BasicDBObject("_id", GC_STATE_ID).append("owner", nodeId),
+                    gcProfile.getWriteConcern());
+        }
+
+        /**
+         * Sleeps as needed to keep the run under {@code gcOpsPerSecond} operations per second.
+         */
+        protected void throttle(int count) {
+            if (gcOpsPerSecond <= 0) {
+                return;
+            }
+            ops += count;
+            long delay = opsStartTime + ops * 1000 / gcOpsPerSecond - System.currentTimeMillis();
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new NuxeoException("Interrupted GC of " + getId(), e);
                 }
             }
-            startTime=0;
+        }
+
+        protected boolean isUploadedSince(DBObject dbFile, String key) {
+            Object date = dbFile.get(key);
+            return date instanceof Date && !((Date) date).before(runStart);
+        }
+
+        protected long getLong(DBObject state, String key) {
+            Object value = state.get(key);
+            return value == null ? 0 : ((Number) value).longValue();
+        }
+
+        /**
+         * Deletes files documents then their chunks, so that readers never see a partial file.
+         */
+        protected void deleteFiles(List<Object> ids) {
+            if (ids.isEmpty()) {
+                return;
+            }
+            DBObject in = new BasicDBObject("$in", ids);
+            getFilesCollection().remove(new BasicDBObject("_id", in), gcProfile.getWriteConcern());
+            getChunksCollection().remove(new BasicDBObject("files_id", in), gcProfile.getWriteConcern());
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("GC of %s: %d files deleted so far (%d bytes)", getId(),
+                        status.numBinariesGC, status.sizeBinariesGC));
+            }
+            ids.clear();
+        }
+
+        protected void removeMarkKeys(Set<String> markKeys) {
+            if (markKeys.isEmpty()) {
+                return;
+            }
+            List<DBObject> clauses = new ArrayList<>();
+            DBObject unset = new BasicDBObject();
+            for (String key : markKeys) {
+                clauses.add(new BasicDBObject("metadata." + key, new BasicDBObject("$exists", true)));
+                unset.put("metadata." + key, "");
+            }
+            getFilesCollection().update(new BasicDBObject("$or", clauses), new BasicDBObject("$unset", unset), false,
+                    true, gcProfile.getWriteConcern());
         }
     }
 
     public GridFS getGridFS() {
         return gridFS;
     }
+
+    public GridFSBlobCache getBlobCache() {
+        return blobCache;
+    }
 }
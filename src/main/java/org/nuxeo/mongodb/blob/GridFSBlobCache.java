@@ -0,0 +1,420 @@
+package org.nuxeo.mongodb.blob;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Persistent on-disk cache of blobs keyed by digest, bounded in size with a least recently used eviction policy.
+ * <p>
+ * Files are downloaded to a temporary directory and atomically moved into place once complete, so a cached file is
+ * always whole. Concurrent requests for the same missing digest share a single download on the given executor, and
+ * streams opened meanwhile follow the data already written; skipping past that data reads the rest of the blob from its
+ * source instead of waiting for the download. The cache content survives restarts: its directory is
+ * scanned on startup, using file modification times to rebuild the LRU order.
+ */
+public class GridFSBlobCache {
+
+    private static final Log log = LogFactory.getLog(GridFSBlobCache.class);
+
+    protected static final String TMP_DIR = "tmp";
+
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Opens the stream of a blob from its source, starting at the given offset.
+     */
+    @FunctionalInterface
+    public interface BlobFetcher {
+        InputStream open(long offset) throws IOException;
+    }
+
+    protected final File dir;
+
+    protected final File tmpDir;
+
+    protected final long maxSize;
+
+    /** Cached digests and their size, in access order. */
+    protected final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    protected long size;
+
+    protected final ConcurrentMap<String, Download> downloads = new ConcurrentHashMap<>();
+
+    protected final Executor executor;
+
+    protected final AtomicLong downloadCount = new AtomicLong();
+
+    public GridFSBlobCache(File dir, long maxSize, Executor executor) throws IOException {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        this.executor = executor;
+        tmpDir = new File(dir, TMP_DIR);
+        if (tmpDir.exists()) {
+            // leftovers of downloads interrupted by a shutdown
+            FileUtils.cleanDirectory(tmpDir);
+        }
+        tmpDir.mkdirs();
+        load();
+    }
+
+    protected void load() {
+        List<File> files = new ArrayList<>();
+        File[] subdirs = dir.listFiles();
+        if (subdirs != null) {
+            for (File subdir : subdirs) {
+                File[] subdirFiles = subdir.isDirectory() && !subdir.equals(tmpDir) ? subdir.listFiles() : null;
+                if (subdirFiles != null) {
+                    for (File file : subdirFiles) {
+                        files.add(file);
+                    }
+                }
+            }
+        }
+        files.sort(Comparator.comparingLong(File::lastModified));
+        synchronized (this) {
+            for (File file : files) {
+                entries.put(file.getName(), file.length());
+                size += file.length();
+            }
+            evict(null);
+        }
+    }
+
+    /**
+     * Gets the cached file for a digest.
+     *
+     * @return the file, or {@code null} if it is not cached
+     */
+    public File getFile(String digest) {
+        synchronized (this) {
+            if (entries.get(digest) == null) {
+                return null;
+            }
+        }
+        File file = getCacheFile(digest);
+        if (!file.exists()) {
+            // removed behind our back
+            remove(digest);
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Gets the cached file for a digest, downloading it first if needed. Concurrent callers for the same digest share
+     * the same download.
+     */
+    public File getFile(String digest, BlobFetcher fetcher) throws IOException {
+        File file = getFile(digest);
+        if (file != null) {
+            return file;
+        }
+        return getDownload(digest, fetcher).await();
+    }
+
+    /**
+     * Gets a stream on the blob for a digest, downloading it into the cache if needed.
+     * <p>
+     * The stream does not wait for the end of the download: it follows the data as it is written to the cache, so
+     * concurrent readers of a missing blob all share a single fetch. Skipping past the data written so far reads the
+     * rest of the blob from the fetcher.
+     *
+     * @param length the length of the blob
+     */
+    public InputStream getStream(String digest, long length, BlobFetcher fetcher) throws IOException {
+        File file = getFile(digest);
+        if (file != null) {
+            return new FileInputStream(file);
+        }
+        return getDownload(digest, fetcher).getStream(length, fetcher);
+    }
+
+    /**
+     * Gets a stream following the in-flight download of a digest, if any.
+     *
+     * @param length the length of the blob
+     * @return the stream, or {@code null} if the digest is not being downloaded
+     */
+    public InputStream getDownloadStream(String digest, long length, BlobFetcher fetcher) throws IOException {
+        Download download = downloads.get(digest);
+        return download == null ? null : download.getStream(length, fetcher);
+    }
+
+    protected Download getDownload(String digest, BlobFetcher fetcher) throws IOException {
+        Download download = downloads.get(digest);
+        if (download != null) {
+            return download;
+        }
+        download = new Download(File.createTempFile(digest, ".tmp", tmpDir));
+        Download existing = downloads.putIfAbsent(digest, download);
+        if (existing != null) {
+            download.file.delete();
+            return existing;
+        }
+        File cached = getFile(digest);
+        if (cached != null) {
+            // published by a download that just ended
+            download.file.delete();
+            download.file = cached;
+            download.advance(cached.length());
+            download.finish(null);
+            downloads.remove(digest, download);
+            return download;
+        }
+        Download started = download;
+        downloadCount.incrementAndGet();
+        executor.execute(() -> download(digest, fetcher, started));
+        return download;
+    }
+
+    protected void download(String digest, BlobFetcher fetcher, Download download) {
+        File tmp = download.file;
+        try {
+            try (InputStream in = fetcher.open(0); OutputStream out = new FileOutputStream(tmp)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                    download.advance(n);
+                }
+            }
+            synchronized (download) {
+                // readers open the file under the same lock, so they never miss the move
+                download.file = publish(digest, tmp);
+            }
+            download.finish(null);
+        } catch (IOException | RuntimeException e) {
+            tmp.delete();
+            download.finish(e instanceof IOException ? (IOException) e : new IOException(e));
+        } finally {
+            downloads.remove(digest, download);
+        }
+    }
+
+    /**
+     * Atomically moves a fully written file into the cache.
+     */
+    protected File publish(String digest, File tmp) throws IOException {
+        File file = getCacheFile(digest);
+        file.getParentFile().mkdirs();
+        long length = tmp.length();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        synchronized (this) {
+            Long previous = entries.put(digest, length);
+            size += length - (previous == null ? 0 : previous);
+            evict(digest);
+        }
+        return file;
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache fits its maximum size, keeping the given digest.
+     */
+    protected synchronized void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            it.remove();
+            size -= entry.getValue();
+            if (!getCacheFile(entry.getKey()).delete()) {
+                log.debug("Unable to delete evicted cache file for: " + entry.getKey());
+            }
+        }
+    }
+
+    protected synchronized void remove(String digest) {
+        Long length = entries.remove(digest);
+        if (length != null) {
+            size -= length;
+        }
+    }
+
+    protected File getCacheFile(String digest) {
+        String subdir = digest.length() > 2 ? digest.substring(0, 2) : "_";
+        return new File(new File(dir, subdir), digest);
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getNumberOfItems() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the number of downloads started since the cache was created.
+     */
+    public long getNumberOfDownloads() {
+        return downloadCount.get();
+    }
+
+    /**
+     * A download in progress, followed by the readers of its blob.
+     */
+    protected static class Download {
+
+        protected volatile File file;
+
+        protected long written;
+
+        protected boolean done;
+
+        protected IOException failure;
+
+        protected Download(File file) {
+            this.file = file;
+        }
+
+        protected synchronized void advance(long n) {
+            written += n;
+            notifyAll();
+        }
+
+        protected synchronized void finish(IOException e) {
+            failure = e;
+            done = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits until there is data to read past the given position, or the download is over.
+         *
+         * @return the number of bytes written so far
+         */
+        protected synchronized long getWritten() {
+            return written;
+        }
+
+        protected synchronized long awaitData(long position) throws IOException {
+            try {
+                while (written <= position && !done) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (failure != null) {
+                throw new IOException("Download failed", failure);
+            }
+            return written;
+        }
+
+        protected File await() throws IOException {
+            awaitData(Long.MAX_VALUE);
+            return file;
+        }
+
+        protected synchronized InputStream getStream(long length, BlobFetcher fetcher) throws IOException {
+            return new DownloadInputStream(this, new FileInputStream(file), length, fetcher);
+        }
+    }
+
+    /**
+     * Stream reading a file as it is being downloaded. Once it skips past the data written so far, it reads the rest
+     * of the blob from the fetcher.
+     */
+    protected static class DownloadInputStream extends InputStream {
+
+        protected final Download download;
+
+        protected InputStream in;
+
+        protected final long length;
+
+        protected final BlobFetcher fetcher;
+
+        protected long position;
+
+        /** Whether {@link #in} reads from the fetcher instead of the download. */
+        protected boolean direct;
+
+        protected DownloadInputStream(Download download, InputStream in, long length, BlobFetcher fetcher) {
+            this.download = download;
+            this.in = in;
+            this.length = length;
+            this.fetcher = fetcher;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (direct) {
+                return in.read(b, off, len);
+            }
+            long written = download.awaitData(position);
+            if (written <= position) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, written - position));
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (direct) {
+                return in.skip(n);
+            }
+            n = Math.min(n, length - position);
+            if (n <= 0) {
+                return 0;
+            }
+            if (position + n > download.getWritten()) {
+                // do not wait for the download of the skipped data
+                InputStream fetched = fetcher.open(position + n);
+                in.close();
+                in = fetched;
+                direct = true;
+            } else {
+                IOUtils.skipFully(in, n);
+            }
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+package org.nuxeo.mongodb.blob;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+
+/**
+ * Stream over a range of a GridFS file that reads the chunks collection directly.
+ * <p>
+ * Only the chunks overlapping the requested range are queried, and {@link #skip} repositions the stream without
+ * fetching the chunks being skipped, so reading the end of a large file does not cost its whole size.
+ */
+public class GridFSChunkInputStream extends InputStream {
+
+    protected final DBCollection chunks;
+
+    protected final Object fileId;
+
+    protected final int chunkSize;
+
+    protected final long end;
+
+    /** Switched to the primary when a chunk is missing, as a secondary may not have replicated the file yet. */
+    protected volatile ReadPreference readPreference;
+
+    protected long position;
+
+    protected byte[] chunk;
+
+    protected int chunkN = -1;
+
+    protected DBCursor cursor;
+
+    protected int cursorN;
+
+    /**
+     * @param offset the position of the first byte to read
+     * @param end the position after the last byte to read
+     * @param readPreference the read preference of the chunk queries
+     */
+    public GridFSChunkInputStream(DBCollection chunks, Object fileId, int chunkSize, long offset, long end,
+            ReadPreference readPreference) {
+        this.chunks = chunks;
+        this.readPreference = readPreference;
+        this.fileId = fileId;
+        this.chunkSize = chunkSize;
+        this.position = offset;
+        this.end = end;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fillChunk()) {
+            return -1;
+        }
+        return chunk[(int) (position++ % chunkSize)] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fillChunk()) {
+            return -1;
+        }
+        int start = (int) (position % chunkSize);
+        int n = (int) Math.min(Math.min(len, chunk.length - start), end - position);
+        System.arraycopy(chunk, start, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0) {
+            return 0;
+        }
+        long skipped = Math.min(n, end - position);
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        if (chunk == null || position >= end || position / chunkSize != chunkN) {
+            return 0;
+        }
+        return (int) Math.min(chunk.length - position % chunkSize, end - position);
+    }
+
+    @Override
+    public void close() {
+        closeCursor();
+        chunk = null;
+    }
+
+    /**
+     * Makes sure the chunk holding the current position is loaded.
+     *
+     * @return {@code false} at the end of the range
+     */
+    protected boolean fillChunk() throws IOException {
+        if (position >= end) {
+            return false;
+        }
+        int n = (int) (position / chunkSize);
+        if (chunk == null || chunkN != n) {
+            chunk = fetchChunk(n);
+            chunkN = n;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the data of chunk {@code n}, reusing the current cursor when reading sequentially.
+     */
+    protected byte[] fetchChunk(int n) throws IOException {
+        if (cursor == null || cursorN != n) {
+            closeCursor();
+            cursor = openCursor(n, getLastChunk());
+            cursorN = n;
+        }
+        if (!cursor.hasNext() && readFromPrimary()) {
+            closeCursor();
+            cursor = openCursor(n, getLastChunk());
+        }
+        if (!cursor.hasNext()) {
+            throw new IOException("Missing chunk " + n + " for GridFS file " + fileId);
+        }
+        byte[] data = getData(cursor.next(), n);
+        cursorN++;
+        return data;
+    }
+
+    /**
+     * Switches the following queries to the primary.
+     *
+     * @return {@code false} if they were already reading from the primary
+     */
+    protected boolean readFromPrimary() {
+        if (ReadPreference.primary().equals(readPreference)) {
+            return false;
+        }
+        readPreference = ReadPreference.primary();
+        return true;
+    }
+
+    protected DBCursor openCursor(int first, int last) {
+        DBObject query = new BasicDBObject("files_id", fileId);
+        query.put("n", new BasicDBObject("$gte", first).append("$lte", last));
+        return chunks.find(query).sort(new BasicDBObject("n", 1)).setReadPreference(readPreference);
+    }
+
+    protected byte[] getData(DBObject chunkObject, int n) throws IOException {
+        if (((Number) chunkObject.get("n")).intValue() != n) {
+            throw new IOException("Missing chunk " + n + " for GridFS file " + fileId);
+        }
+        return (byte[]) chunkObject.get("data");
+    }
+
+    protected int getLastChunk() {
+        return (int) ((end - 1) / chunkSize);
+    }
+
+    protected void closeCursor() {
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+    }
+
+}
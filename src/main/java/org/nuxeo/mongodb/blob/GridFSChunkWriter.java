@@ -0,0 +1,150 @@
+package org.nuxeo.mongodb.blob;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.IOUtils;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+/**
+ * Writes the chunks of a GridFS file as multi-document inserts of {@code batchSize} chunks.
+ * <p>
+ * With an executor, up to {@code parallelism} batches are inserted concurrently while the next one is being read, so
+ * at most {@code (parallelism + 1) * batchSize} chunks are held in memory. Without one, batches are inserted on the
+ * calling thread.
+ */
+public class GridFSChunkWriter {
+
+    protected final DBCollection chunks;
+
+    protected final int chunkSize;
+
+    protected final int batchSize;
+
+    protected final ExecutorService executor;
+
+    protected final int parallelism;
+
+    protected final WriteConcern writeConcern;
+
+    public GridFSChunkWriter(DBCollection chunks, int chunkSize, int batchSize, ExecutorService executor,
+            int parallelism, WriteConcern writeConcern) {
+        this.chunks = chunks;
+        this.writeConcern = writeConcern;
+        this.chunkSize = chunkSize;
+        this.batchSize = batchSize;
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Writes all the chunks of the stream. On failure the chunks already written are removed.
+     */
+    public void write(Object fileId, InputStream in) throws IOException {
+        Semaphore inFlight = new Semaphore(parallelism);
+        AtomicBoolean aborted = new AtomicBoolean();
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            List<DBObject> batch = new ArrayList<>(batchSize);
+            int n = 0;
+            byte[] buffer = new byte[chunkSize];
+            int read;
+            while ((read = IOUtils.read(in, buffer)) > 0) {
+                byte[] data = read == chunkSize ? buffer : Arrays.copyOf(buffer, read);
+                batch.add(new BasicDBObject("files_id", fileId).append("n", n++).append("data", data));
+                buffer = new byte[chunkSize];
+                if (batch.size() == batchSize) {
+                    futures.add(insert(batch, inFlight, aborted));
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                futures.add(insert(batch, inFlight, aborted));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            abort(fileId, futures, aborted);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            abort(fileId, futures, aborted);
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (IOException | RuntimeException e) {
+            abort(fileId, futures, aborted);
+            throw e;
+        }
+    }
+
+    protected Future<?> insert(List<DBObject> batch, Semaphore inFlight, AtomicBoolean aborted)
+            throws InterruptedException {
+        if (executor == null) {
+            chunks.insert(batch, writeConcern);
+            return CompletableFuture.completedFuture(null);
+        }
+        inFlight.acquire();
+        try {
+            return executor.submit(() -> {
+                try {
+                    if (!aborted.get()) {
+                        chunks.insert(batch, writeConcern);
+                    }
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Skips the pending inserts and waits for the running ones before removing the chunks already written, so that no
+     * insert still in flight can leave orphan chunks behind the removal.
+     */
+    protected void abort(Object fileId, List<Future<?>> futures, AtomicBoolean aborted) {
+        aborted.set(true);
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (!future.isDone()) {
+                try {
+                    future.get(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException | CancellationException e) {
+                    // already failed, nothing to wait for
+                } catch (TimeoutException e) {
+                    if (executor.isTerminated()) {
+                        // dropped by a shutdown of the executor, will never run
+                        break;
+                    }
+                }
+            }
+        }
+        chunks.remove(new BasicDBObject("files_id", fileId), writeConcern);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,221 @@
+package org.nuxeo.mongodb.blob;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * Compact set of digests, used to hold the marks of a garbage collection in memory.
+ * <p>
+ * Hexadecimal digests are stored as their raw bytes packed into primitive arrays, one array per digest length, and
+ * looked up by binary search once the set is {@link #seal sealed}: an MD5 costs 16 bytes instead of a {@link String}
+ * and its map entry. Duplicates are removed whenever an array fills up, so memory grows with the number of distinct
+ * digests rather than the number of marks. Other digests fall back to a regular {@link Set}.
+ */
+public class GridFSDigestSet {
+
+    protected final Map<Integer, Records> records = new HashMap<>();
+
+    protected final Set<String> others = new HashSet<>();
+
+    public void add(String digest) {
+        long[] key = toKey(digest);
+        if (key == null) {
+            others.add(digest);
+        } else {
+            records.computeIfAbsent(Integer.valueOf(digest.length()), k -> new Records(key.length)).add(key);
+        }
+    }
+
+    /**
+     * Sorts the digests. Must be called after the last {@link #add} and before any {@link #contains}.
+     */
+    public void seal() {
+        for (Records r : records.values()) {
+            r.compact();
+        }
+    }
+
+    public boolean contains(String digest) {
+        long[] key = toKey(digest);
+        if (key == null) {
+            return others.contains(digest);
+        }
+        Records r = records.get(Integer.valueOf(digest.length()));
+        return r != null && r.contains(key);
+    }
+
+    /**
+     * Packs a hexadecimal digest into longs.
+     *
+     * @return the packed digest, or {@code null} if it is not hexadecimal
+     */
+    protected static long[] toKey(String digest) {
+        int length = digest.length();
+        if (length == 0) {
+            return null;
+        }
+        long[] key = new long[(length + 15) / 16];
+        for (int i = 0; i < length; i++) {
+            int value = Character.digit(digest.charAt(i), 16);
+            if (value < 0 || Character.isUpperCase(digest.charAt(i))) {
+                // keep a single representation per digest
+                return null;
+            }
+            key[i / 16] = (key[i / 16] << 4) | value;
+        }
+        return key;
+    }
+
+    /**
+     * Fixed-width records of {@code width} longs.
+     */
+    protected static class Records {
+
+        /** Maximum length of an array, some VMs reserve header words. */
+        protected static final int MAX_LENGTH = Integer.MAX_VALUE - 8;
+
+        protected final int width;
+
+        protected long[] data = new long[1024];
+
+        protected int size;
+
+        protected Records(int width) {
+            this.width = width;
+        }
+
+        protected void add(long[] key) {
+            if ((long) (size + 1) * width > data.length) {
+                // digests are marked many times, drop the duplicates before growing
+                compact();
+                if ((long) (size + 1) * width * 2 > data.length) {
+                    // keep at least half of the array free, so that compactions stay rare
+                    grow();
+                }
+                if ((long) (size + 1) * width > data.length) {
+                    throw new NuxeoException("Too many distinct digests to hold in memory: " + size);
+                }
+            }
+            System.arraycopy(key, 0, data, size * width, width);
+            size++;
+        }
+
+        protected void grow() {
+            long length = Math.min((long) data.length * 2, MAX_LENGTH / width * width);
+            if (length > data.length) {
+                data = Arrays.copyOf(data, (int) length);
+            }
+        }
+
+        /**
+         * Sorts the records and removes the duplicates.
+         */
+        protected void compact() {
+            sort();
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (n == 0 || compare(i, n - 1) != 0) {
+                    if (i != n) {
+                        System.arraycopy(data, i * width, data, n * width, width);
+                    }
+                    n++;
+                }
+            }
+            size = n;
+        }
+
+        protected boolean contains(long[] key) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(mid, key);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        protected int compare(int i, long[] key) {
+            for (int k = 0; k < width; k++) {
+                int cmp = Long.compare(data[i * width + k], key[k]);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return 0;
+        }
+
+        protected int compare(int i, int j) {
+            for (int k = 0; k < width; k++) {
+                int cmp = Long.compare(data[i * width + k], data[j * width + k]);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return 0;
+        }
+
+        protected void swap(int i, int j) {
+            for (int k = 0; k < width; k++) {
+                long tmp = data[i * width + k];
+                data[i * width + k] = data[j * width + k];
+                data[j * width + k] = tmp;
+            }
+        }
+
+        protected void sort() {
+            sort(0, size - 1);
+        }
+
+        protected void sort(int low, int high) {
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                // median of three as pivot, moved to high
+                if (compare(mid, low) < 0) {
+                    swap(mid, low);
+                }
+                if (compare(high, low) < 0) {
+                    swap(high, low);
+                }
+                if (compare(mid, high) < 0) {
+                    swap(mid, high);
+                }
+                // three-way partition, digests are marked many times
+                long[] pivot = Arrays.copyOfRange(data, high * width, (high + 1) * width);
+                int lt = low;
+                int gt = high;
+                int i = low;
+                while (i <= gt) {
+                    int cmp = compare(i, pivot);
+                    if (cmp < 0) {
+                        swap(lt++, i++);
+                    } else if (cmp > 0) {
+                        swap(i, gt--);
+                    } else {
+                        i++;
+                    }
+                }
+                // recurse on the smaller side to bound the stack depth
+                if (lt - low < high - gt) {
+                    sort(low, lt - 1);
+                    low = gt + 1;
+                } else {
+                    sort(gt + 1, high);
+                    high = lt - 1;
+                }
+            }
+        }
+    }
+
+}
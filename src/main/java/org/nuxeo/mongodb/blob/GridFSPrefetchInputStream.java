@@ -0,0 +1,116 @@
+package org.nuxeo.mongodb.blob;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Chunk stream reading ahead of the caller: while a batch of chunks is being consumed, the next one is fetched by a
+ * single range query on a background executor.
+ * <p>
+ * At most two batches of {@code depth} chunks are held in memory at any time. Seeking outside of the buffered batches
+ * drops them and restarts the read-ahead from the new position.
+ */
+public class GridFSPrefetchInputStream extends GridFSChunkInputStream {
+
+    protected final ExecutorService executor;
+
+    protected final int depth;
+
+    protected List<byte[]> batch;
+
+    protected int batchFirst;
+
+    protected Future<List<byte[]>> nextBatch;
+
+    protected int nextBatchFirst;
+
+    public GridFSPrefetchInputStream(GridFSChunkInputStream stream, ExecutorService executor, int depth) {
+        super(stream.chunks, stream.fileId, stream.chunkSize, stream.position, stream.end, stream.readPreference);
+        this.executor = executor;
+        this.depth = depth;
+    }
+
+    @Override
+    protected byte[] fetchChunk(int n) throws IOException {
+        if (batch == null || n < batchFirst || n >= batchFirst + batch.size()) {
+            if (nextBatch != null && n >= nextBatchFirst && n < nextBatchFirst + depth) {
+                batch = await(nextBatch);
+                batchFirst = nextBatchFirst;
+            } else {
+                cancelNextBatch();
+                batch = fetchBatch(n);
+                batchFirst = n;
+            }
+            nextBatch = null;
+            int next = batchFirst + batch.size();
+            if (next <= getLastChunk()) {
+                nextBatchFirst = next;
+                nextBatch = executor.submit(() -> fetchBatch(next));
+            }
+            if (n >= batchFirst + batch.size()) {
+                throw new IOException("Missing chunk " + n + " for GridFS file " + fileId);
+            }
+        }
+        return batch.get(n - batchFirst);
+    }
+
+    protected List<byte[]> fetchBatch(int first) throws IOException {
+        int last = Math.min(first + depth - 1, getLastChunk());
+        List<byte[]> chunks = fetchBatch(first, last);
+        if (chunks.size() <= last - first && readFromPrimary()) {
+            chunks = fetchBatch(first, last);
+        }
+        return chunks;
+    }
+
+    protected List<byte[]> fetchBatch(int first, int last) throws IOException {
+        List<byte[]> chunks = new ArrayList<>(last - first + 1);
+        DBCursor cursor = openCursor(first, last).batchSize(depth);
+        try {
+            for (int n = first; n <= last && cursor.hasNext(); n++) {
+                DBObject chunkObject = cursor.next();
+                chunks.add(getData(chunkObject, n));
+            }
+        } finally {
+            cursor.close();
+        }
+        return chunks;
+    }
+
+    protected List<byte[]> await(Future<List<byte[]>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    protected void cancelNextBatch() {
+        if (nextBatch != null) {
+            nextBatch.cancel(false);
+            nextBatch = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        cancelNextBatch();
+        batch = null;
+        super.close();
+    }
+
+}
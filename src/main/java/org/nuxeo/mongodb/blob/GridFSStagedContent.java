@@ -0,0 +1,112 @@
+package org.nuxeo.mongodb.blob;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * Content of an upload staged locally while its digest is computed, so that GridFS is only written once the digest
+ * is known.
+ * <p>
+ * Small uploads are kept in memory, larger ones spill to a temporary file that is deleted on {@link #close}.
+ */
+public class GridFSStagedContent implements Closeable {
+
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    protected final String digest;
+
+    protected final long length;
+
+    protected final byte[] bytes;
+
+    protected final File file;
+
+    protected GridFSStagedContent(String digest, long length, byte[] bytes, File file) {
+        this.digest = digest;
+        this.length = length;
+        this.bytes = bytes;
+        this.file = file;
+    }
+
+    /**
+     * Reads the whole stream, computing its digest on the fly.
+     *
+     * @param memoryThreshold the size above which the content is spilled to a temporary file
+     */
+    public static GridFSStagedContent stage(InputStream stream, String digestAlgorithm, int memoryThreshold)
+            throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance(digestAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new NuxeoException("Unknown digest algorithm: " + digestAlgorithm, e);
+        }
+        DigestInputStream in = new DigestInputStream(stream, messageDigest);
+        ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        File file = null;
+        OutputStream out = memory;
+        long length = 0;
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                if (file == null && length + n > memoryThreshold) {
+                    file = File.createTempFile("nxgridfs-", ".tmp");
+                    out = new FileOutputStream(file);
+                    memory.writeTo(out);
+                    memory = null;
+                }
+                out.write(buffer, 0, n);
+                length += n;
+            }
+        } catch (IOException e) {
+            if (file != null) {
+                out.close();
+                file.delete();
+            }
+            throw e;
+        } finally {
+            in.close();
+        }
+        out.close();
+        String digest = DatatypeConverter.printHexBinary(messageDigest.digest()).toLowerCase();
+        return new GridFSStagedContent(digest, length, memory == null ? null : memory.toByteArray(), file);
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public InputStream getStream() throws IOException {
+        if (file != null) {
+            return new FileInputStream(file);
+        }
+        return new ByteArrayInputStream(bytes);
+    }
+
+    @Override
+    public void close() {
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+}
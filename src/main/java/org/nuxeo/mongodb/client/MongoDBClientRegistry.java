@@ -0,0 +1,178 @@
+package org.nuxeo.mongodb.client;
+
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.runtime.api.Framework;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+import com.mongodb.ServerAddress;
+
+/**
+ * Registry of the {@link MongoClient}s shared by the MongoDB components of this module, so that a node holds a single
+ * connection pool per cluster.
+ * <p>
+ * Clients are keyed by server (host or {@code mongodb://} connection URI) only, and reference counted: each
+ * {@link #acquire} must be balanced by a {@link #release}, the last one closing the client.
+ * <p>
+ * Client options come from the {@code nuxeo.mongodb.<option>} properties, overridden by the properties of the
+ * component, and options given in a connection URI take precedence over both. The first component to acquire a client
+ * creates it with its options: a later component asking for a different value of an option fails, and an option the
+ * client was created without is ignored with a warning.
+ * <p>
+ * Read preferences and write concerns are not client options: each component sets its own, see
+ * {@link MongoDBProfile}, so that the {@code readPreference} property of one component does not change where the
+ * queries of the others go.
+ */
+public class MongoDBClientRegistry {
+
+    private static final Log log = LogFactory.getLog(MongoDBClientRegistry.class);
+
+    /** Prefix of the client options set for all the components. */
+    public static final String PROPERTY_PREFIX = "nuxeo.mongodb.";
+
+    /** Maximum number of connections per host. */
+    public static final String CONNECTIONS_PER_HOST = "connectionsPerHost";
+
+    /** Connection timeout, in milliseconds. */
+    public static final String CONNECT_TIMEOUT = "connectTimeout";
+
+    /** Socket timeout, in milliseconds. */
+    public static final String SOCKET_TIMEOUT = "socketTimeout";
+
+    /** Maximum time to wait for a connection from the pool, in milliseconds. */
+    public static final String MAX_WAIT_TIME = "maxWaitTime";
+
+    /** The names of the client options. */
+    public static final List<String> OPTIONS = Collections.unmodifiableList(Arrays.asList(CONNECTIONS_PER_HOST,
+            CONNECT_TIMEOUT, SOCKET_TIMEOUT, MAX_WAIT_TIME));
+
+    protected static class Entry {
+
+        protected final String key;
+
+        protected final Map<String, String> options;
+
+        protected final MongoClient client;
+
+        protected int refs;
+
+        protected Entry(String key, Map<String, String> options, MongoClient client) {
+            this.key = key;
+            this.options = options;
+            this.client = client;
+        }
+    }
+
+    protected static final Map<String, Entry> ENTRIES = new HashMap<>();
+
+    private MongoDBClientRegistry() {
+        // static registry
+    }
+
+    /**
+     * Gets the shared client of a server.
+     *
+     * @param server the host, or a {@code mongodb://} connection URI
+     * @param properties the client options of the component, overriding the {@code nuxeo.mongodb.<option>}
+     *            properties, other properties are ignored
+     * @throws NuxeoException if the client of the server exists with a different value of an option
+     */
+    public static synchronized MongoClient acquire(String server, Map<String, String> properties) {
+        Map<String, String> options = getOptions(properties);
+        Entry entry = ENTRIES.get(server);
+        if (entry == null) {
+            entry = new Entry(server, options, newClient(server, options));
+            ENTRIES.put(server, entry);
+        } else {
+            checkOptions(entry, options);
+        }
+        entry.refs++;
+        return entry.client;
+    }
+
+    /**
+     * Gets the client options from the {@code nuxeo.mongodb.<option>} properties, overridden by the given properties.
+     */
+    public static Map<String, String> getOptions(Map<String, String> properties) {
+        Map<String, String> options = new TreeMap<>();
+        for (String option : OPTIONS) {
+            String value = properties.get(option);
+            if (value == null) {
+                value = Framework.getProperty(PROPERTY_PREFIX + option);
+            }
+            if (value != null) {
+                options.put(option, value);
+            }
+        }
+        return options;
+    }
+
+    protected static void checkOptions(Entry entry, Map<String, String> options) {
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            String existing = entry.options.get(option.getKey());
+            if (existing == null) {
+                log.warn("MongoDB client for " + entry.key + " already created without " + option.getKey()
+                        + ", ignoring " + option.getKey() + "=" + option.getValue());
+            } else if (!existing.equals(option.getValue())) {
+                throw new NuxeoException("Conflicting MongoDB client option " + option.getKey() + " for "
+                        + entry.key + ": " + option.getValue() + ", the shared client uses " + existing);
+            }
+        }
+    }
+
+    /**
+     * Releases a client obtained from {@link #acquire}, closing it if it is not used anymore.
+     */
+    public static synchronized void release(MongoClient client) {
+        for (Entry entry : ENTRIES.values()) {
+            if (entry.client == client) {
+                if (--entry.refs == 0) {
+                    ENTRIES.remove(entry.key);
+                    client.close();
+                }
+                return;
+            }
+        }
+    }
+
+    protected static MongoClient newClient(String server, Map<String, String> options) {
+        MongoClientOptions.Builder builder = MongoClientOptions.builder();
+        String value = options.get(CONNECTIONS_PER_HOST);
+        if (value != null) {
+            builder.connectionsPerHost(Integer.parseInt(value));
+        }
+        value = options.get(CONNECT_TIMEOUT);
+        if (value != null) {
+            builder.connectTimeout(Integer.parseInt(value));
+        }
+        value = options.get(SOCKET_TIMEOUT);
+        if (value != null) {
+            builder.socketTimeout(Integer.parseInt(value));
+        }
+        value = options.get(MAX_WAIT_TIME);
+        if (value != null) {
+            builder.maxWaitTime(Integer.parseInt(value));
+        }
+        try {
+            if (server.startsWith("mongodb://")) {
+                return new MongoClient(new MongoClientURI(server, builder));
+            } else {
+                return new MongoClient(new ServerAddress(server), builder.build());
+            }
+        } catch (UnknownHostException e) {
+            throw new NuxeoException("Unable to init MongoDB client", e);
+        }
+    }
+
+}
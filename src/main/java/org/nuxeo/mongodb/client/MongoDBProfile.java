@@ -0,0 +1,76 @@
+package org.nuxeo.mongodb.client;
+
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+
+/**
+ * Write concern and read preference used by a component, or by one kind of operation of a component.
+ * <p>
+ * A profile is configured by the {@code writeConcern} and {@code readPreference} properties, optionally prefixed to
+ * distinguish several profiles in the same configuration (for instance {@code gc.writeConcern}). Prefixed properties
+ * override unprefixed ones, which override the defaults. The write concern is a name known to
+ * {@link WriteConcern#valueOf} (e.g. {@code majority}, {@code acknowledged}, {@code unacknowledged}) or a number of
+ * nodes, the read preference a name known to {@link ReadPreference#valueOf} (e.g. {@code secondaryPreferred}).
+ * <p>
+ * Components may restrict a profile: the writes of the blob garbage collector are always acknowledged, and its reads
+ * always go to the primary.
+ */
+public class MongoDBProfile {
+
+    public static final String WRITE_CONCERN = "writeConcern";
+
+    public static final String READ_PREFERENCE = "readPreference";
+
+    protected final WriteConcern writeConcern;
+
+    protected final ReadPreference readPreference;
+
+    public MongoDBProfile(WriteConcern writeConcern, ReadPreference readPreference) {
+        this.writeConcern = writeConcern;
+        this.readPreference = readPreference;
+    }
+
+    /**
+     * Reads a profile from properties.
+     *
+     * @param prefix the prefix of the profile properties, {@code null} for none
+     * @param defaults the profile used for the properties not set
+     */
+    public static MongoDBProfile fromProperties(Map<String, String> properties, String prefix,
+            MongoDBProfile defaults) {
+        String writeConcern = getProperty(properties, prefix, WRITE_CONCERN);
+        String readPreference = getProperty(properties, prefix, READ_PREFERENCE);
+        return new MongoDBProfile(
+                writeConcern == null ? defaults.writeConcern : parseWriteConcern(writeConcern),
+                readPreference == null ? defaults.readPreference : ReadPreference.valueOf(readPreference));
+    }
+
+    protected static String getProperty(Map<String, String> properties, String prefix, String name) {
+        String value = prefix == null ? null : properties.get(prefix + "." + name);
+        return value == null ? properties.get(name) : value;
+    }
+
+    protected static WriteConcern parseWriteConcern(String value) {
+        if (value.matches("\\d+")) {
+            return new WriteConcern(Integer.parseInt(value));
+        }
+        WriteConcern writeConcern = WriteConcern.valueOf(value);
+        if (writeConcern == null) {
+            throw new NuxeoException("Unknown write concern: " + value);
+        }
+        return writeConcern;
+    }
+
+    public WriteConcern getWriteConcern() {
+        return writeConcern;
+    }
+
+    public ReadPreference getReadPreference() {
+        return readPreference;
+    }
+
+}
@@ -1,21 +1,40 @@
 package org.nuxeo.mongodb.seq;
 
-import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.core.uidgen.AbstractUIDSequencer;
 import org.nuxeo.ecm.core.uidgen.UIDSequencer;
+import org.nuxeo.mongodb.client.MongoDBClientRegistry;
+import org.nuxeo.mongodb.client.MongoDBProfile;
 import org.nuxeo.runtime.api.Framework;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
-import com.mongodb.MongoClientURI;
-import com.mongodb.ServerAddress;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
 
 public class MongoDBSequencer extends AbstractUIDSequencer implements UIDSequencer {
 
+    private static final Log log = LogFactory.getLog(MongoDBSequencer.class);
+
     protected String server;
 
     protected String dbname;
@@ -24,6 +43,53 @@ public class MongoDBSequencer extends AbstractUIDSequencer implements UIDSequenc
 
     protected MongoClient client;
 
+    public static final String BLOCK_SIZE_PROPERTY = "nuxeo.mongodb.sequencer.blockSize";
+
+    public static final String MAX_BLOCK_SIZE_PROPERTY = "nuxeo.mongodb.sequencer.maxBlockSize";
+
+    public static final String STRICT_KEYS_PROPERTY = "nuxeo.mongodb.sequencer.strict";
+
+    /** Prefix of the {@code writeConcern} and {@code readPreference} properties of the sequencer. */
+    public static final String PROFILE_PROPERTY_PREFIX = "nuxeo.mongodb.sequencer.";
+
+    /**
+     * Values handed out must never be handed out again after a failover, so counters are written to a majority of the
+     * replica set and read from the primary by default.
+     */
+    public static final MongoDBProfile DEFAULT_PROFILE = new MongoDBProfile(WriteConcern.MAJORITY,
+            ReadPreference.primary());
+
+    protected MongoDBProfile profile = DEFAULT_PROFILE;
+
+    protected static final long FAST_REFILL_MS = 1000;
+
+    protected static final long SLOW_REFILL_MS = 60 * 1000;
+
+    protected int defaultBlockSize = 1;
+
+    protected int maxBlockSize = 1;
+
+    protected Set<String> strictKeys = Collections.emptySet();
+
+    protected final ConcurrentMap<String, Integer> blockSizes = new ConcurrentHashMap<>();
+
+    protected final ConcurrentMap<String, Block> blocks = new ConcurrentHashMap<>();
+
+    protected final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    /** Blocks being reserved in the background, before the current ones are used up. */
+    protected final ConcurrentMap<String, CompletableFuture<Block>> prefetched = new ConcurrentHashMap<>();
+
+    /** Runs the {@link #getNextAsync} calls that wait for a block. */
+    protected ExecutorService executor;
+
+    /**
+     * Reserves blocks in the background. Kept apart from {@link #executor}, whose threads wait for these reservations.
+     */
+    protected ExecutorService reserver;
+
+    protected static final long NO_VALUE = Long.MIN_VALUE;
+
     public MongoDBSequencer() {
         super();
     }
@@ -52,8 +118,25 @@ public class MongoDBSequencer extends AbstractUIDSequencer implements UIDSequenc
 
     @Override
     public void dispose() {
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+            if (reserver != null) {
+                reserver.shutdownNow();
+                reserver = null;
+            }
+        }
+        // reservations dropped by the shutdown would never complete
+        for (CompletableFuture<Block> future : prefetched.values()) {
+            future.cancel(false);
+        }
+        prefetched.clear();
+        blocks.clear();
         if (client != null) {
-            client.close();
+            MongoDBClientRegistry.release(client);
+            client = null;
         }
     }
 
@@ -61,41 +144,263 @@ public class MongoDBSequencer extends AbstractUIDSequencer implements UIDSequenc
         if (client == null) {
             init();
         }
-        return client.getDB(getDBName()).getCollection(collectionName);
+        DBCollection collection = client.getDB(getDBName()).getCollection(collectionName);
+        // the counters collection is only used by the sequencer, its defaults apply to findAndModify
+        collection.setWriteConcern(profile.getWriteConcern());
+        collection.setReadPreference(profile.getReadPreference());
+        return collection;
     }
 
+    /**
+     * Gets the next value of a sequence, which must fit in an int. Use {@link #getNextLong} for larger sequences.
+     */
     @Override
     public int getNext(String key) {
+        long value = next(key);
+        if (value > Integer.MAX_VALUE) {
+            throw new NuxeoException("Sequence " + key + " overflows int (" + value + "), use getNextLong");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Gets the next 64-bit value of a sequence.
+     */
+    public long getNextLong(String key) {
+        return next(key);
+    }
+
+    /**
+     * Reserves {@code n} contiguous values of a sequence in a single round trip.
+     * <p>
+     * The range is taken directly from the counter, independently of the block used by {@link #getNext} when block
+     * allocation is enabled.
+     */
+    public SequenceRange getNextBlock(String key, int n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("Invalid block size: " + n);
+        }
+        if (client == null) {
+            init();
+        }
+        long last = reserve(key, n);
+        return new SequenceRange(last - n + 1, last);
+    }
+
+    /**
+     * Gets the next value of a sequence, from the block reserved locally for its key if block allocation is enabled.
+     * <p>
+     * Values are monotonic on a given node, but not across nodes since each node hands out values from its own block.
+     */
+    protected long next(String key) {
+        if (client == null) {
+            init();
+        }
+        int size = getBlockSize(key);
+        if (size <= 1) {
+            return reserve(key, 1);
+        }
+        for (;;) {
+            Block block = blocks.get(key);
+            long value = next(key, block);
+            if (value != NO_VALUE) {
+                return value;
+            }
+            synchronized (locks.computeIfAbsent(key, k -> new Object())) {
+                if (blocks.get(key) == block) {
+                    blocks.put(key, takeBlock(key, block));
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a value from a block, starting the reservation of the next block in the background when the block is
+     * three quarters used.
+     *
+     * @return the value, or {@link #NO_VALUE} if the block is missing or used up
+     */
+    protected long next(String key, Block block) {
+        if (block == null) {
+            return NO_VALUE;
+        }
+        long value = block.next.getAndIncrement();
+        if (value > block.last) {
+            return NO_VALUE;
+        }
+        if (value == block.last - block.size / 4) {
+            // only one thread gets this value
+            prefetched.put(key, CompletableFuture.supplyAsync(() -> newBlock(key, block), getReserver()));
+        }
+        return value;
+    }
+
+    /**
+     * Gets the next value of a sequence without blocking on the network when possible.
+     * <p>
+     * With block allocation, the returned future is already completed unless the local block is used up, and the next
+     * block is reserved in the background before that happens. Otherwise the value is fetched on a background thread.
+     */
+    public CompletableFuture<Long> getNextAsync(String key) {
+        if (client == null) {
+            init();
+        }
+        if (getBlockSize(key) > 1) {
+            long value = next(key, blocks.get(key));
+            if (value != NO_VALUE) {
+                return CompletableFuture.completedFuture(Long.valueOf(value));
+            }
+        }
+        return CompletableFuture.supplyAsync(() -> Long.valueOf(next(key)), getExecutor());
+    }
+
+    /**
+     * Takes the block reserved in the background if any, otherwise reserves a new one.
+     */
+    protected Block takeBlock(String key, Block previous) {
+        CompletableFuture<Block> future = prefetched.remove(key);
+        if (future != null) {
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                log.warn("Unable to reserve a block for sequence " + key + ", retrying", e.getCause());
+            } catch (CancellationException e) {
+                // cancelled by dispose, reserve a new one
+            }
+        }
+        return newBlock(key, previous);
+    }
+
+    protected synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = newExecutor("MongoDB-sequencer");
+        }
+        return executor;
+    }
+
+    protected synchronized ExecutorService getReserver() {
+        if (reserver == null) {
+            reserver = newExecutor("MongoDB-sequencer-reserver");
+        }
+        return reserver;
+    }
+
+    protected static ExecutorService newExecutor(String name) {
+        return Executors.newFixedThreadPool(2, r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
 
+    /**
+     * Reserves a new block, adapting its size to the demand: the size doubles, up to {@code maxBlockSize}, when the
+     * previous block was used up in less than {@link #FAST_REFILL_MS}, and halves back to the configured size when it
+     * lasted more than {@link #SLOW_REFILL_MS}.
+     */
+    protected Block newBlock(String key, Block previous) {
+        int size = getBlockSize(key);
+        if (previous != null) {
+            long elapsed = System.currentTimeMillis() - previous.reservedAt;
+            if (elapsed < FAST_REFILL_MS) {
+                size = Math.min(previous.size * 2, Math.max(size, maxBlockSize));
+            } else if (elapsed < SLOW_REFILL_MS) {
+                size = Math.max(previous.size, size);
+            } else {
+                size = Math.max(previous.size / 2, size);
+            }
+        }
+        long last = reserve(key, size);
+        return new Block(last - size + 1, last, size);
+    }
+
+    /**
+     * Increments the counter of a key in a single round trip.
+     *
+     * @return the new value of the counter, which is the last value reserved
+     */
+    protected long reserve(String key, int size) {
         DBObject query = new BasicDBObject();
         query.put("_id", key);
 
         DBObject update = new BasicDBObject();
         DBObject updateValue = new BasicDBObject();
-        updateValue.put("seq", 1);
+        // a long increment stores the counter as a 64-bit value
+        updateValue.put("seq", (long) size);
         update.put("$inc", updateValue);
 
         DBObject res = getCounterCollection().findAndModify(query, null, null, false, update, true,
                 true);
 
-        return (int) res.get("seq");
+        return ((Number) res.get("seq")).longValue();
+    }
+
+    /**
+     * Gets the block size for a key, from the {@code nuxeo.mongodb.sequencer.blockSize.<key>} or
+     * {@code nuxeo.mongodb.sequencer.blockSize} properties. Keys listed in {@code nuxeo.mongodb.sequencer.strict} are
+     * gap-free, and always use a block size of 1.
+     */
+    protected int getBlockSize(String key) {
+        return blockSizes.computeIfAbsent(key, k -> {
+            if (strictKeys.contains(k)) {
+                return 1;
+            }
+            String value = Framework.getProperty(BLOCK_SIZE_PROPERTY + "." + k);
+            return value == null ? defaultBlockSize : Integer.parseInt(value);
+        }).intValue();
+    }
+
+    /**
+     * A block of reserved values, handed out by a lock-free counter.
+     */
+    protected static class Block {
+
+        protected final AtomicLong next;
+
+        protected final long last;
+
+        protected final int size;
+
+        protected final long reservedAt = System.currentTimeMillis();
+
+        protected Block(long first, long last, int size) {
+            next = new AtomicLong(first);
+            this.last = last;
+            this.size = size;
+        }
     }
 
     @Override
     public void init() {
-        try {
-            if (getServer().startsWith("mongodb://")) {
-                client = new MongoClient(new MongoClientURI(getServer()));
-            } else {
-                client = new MongoClient(new ServerAddress(getServer()));
+        client = MongoDBClientRegistry.acquire(getServer(), Collections.<String, String> emptyMap());
+        Map<String, String> profileProperties = new HashMap<>();
+        for (String name : Arrays.asList(MongoDBProfile.WRITE_CONCERN, MongoDBProfile.READ_PREFERENCE)) {
+            String value = Framework.getProperty(PROFILE_PROPERTY_PREFIX + name);
+            if (value != null) {
+                profileProperties.put(name, value);
             }
-        } catch (UnknownHostException e) {
-            throw new NuxeoException("Unable to init MongoDB client", e);
         }
+        profile = MongoDBProfile.fromProperties(profileProperties, null, DEFAULT_PROFILE);
+
+        String value = Framework.getProperty(BLOCK_SIZE_PROPERTY);
+        if (value != null) {
+            defaultBlockSize = Integer.parseInt(value);
+        }
+        value = Framework.getProperty(MAX_BLOCK_SIZE_PROPERTY);
+        maxBlockSize = value == null ? defaultBlockSize * 16 : Integer.parseInt(value);
+        value = Framework.getProperty(STRICT_KEYS_PROPERTY);
+        if (value != null) {
+            strictKeys = new HashSet<>(Arrays.asList(value.split("\\s*,\\s*")));
+        }
+        blockSizes.clear();
     }
 
     @Override
     public void initSequence(String key, int value) {
+        initSequence(key, (long) value);
+    }
+
+    public void initSequence(String key, long value) {
 
         DBObject query = new BasicDBObject();
         query.put("_id", key);
@@ -105,6 +410,9 @@ public class MongoDBSequencer extends AbstractUIDSequencer implements UIDSequenc
 
         getCounterCollection().findAndModify(query, null, null, false, update, true,
                 true);
+        // values reserved from the previous sequence are not valid anymore
+        blocks.remove(key);
+        prefetched.remove(key);
     }
 
 }
@@ -0,0 +1,38 @@
+package org.nuxeo.mongodb.seq;
+
+import java.io.Serializable;
+
+/**
+ * A contiguous range of sequence values, bounds included.
+ */
+public class SequenceRange implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    protected final long first;
+
+    protected final long last;
+
+    public SequenceRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    public long getFirst() {
+        return first;
+    }
+
+    public long getLast() {
+        return last;
+    }
+
+    public long size() {
+        return last - first + 1;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + first + ", " + last + "]";
+    }
+
+}
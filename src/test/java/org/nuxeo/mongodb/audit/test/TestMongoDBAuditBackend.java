@@ -0,0 +1,658 @@
+package org.nuxeo.mongodb.audit.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.platform.audit.api.ExtendedInfo;
+import org.nuxeo.ecm.platform.audit.api.FilterMapEntry;
+import org.nuxeo.ecm.platform.audit.api.LogEntry;
+import org.nuxeo.ecm.platform.audit.impl.LogEntryImpl;
+import org.nuxeo.mongodb.audit.AuditPartitioning;
+import org.nuxeo.mongodb.audit.EventHistogram;
+import org.nuxeo.mongodb.audit.LogEntryPage;
+import org.nuxeo.mongodb.audit.MongoDBAuditBackend;
+import org.nuxeo.mongodb.client.MongoDBClientRegistry;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestMongoDBAuditBackend {
+
+    protected static final String COLLECTION = "audittest";
+
+    protected final Map<String, String> properties = new HashMap<>();
+
+    protected MongoClient client;
+
+    protected MongoDBAuditBackend backend;
+
+    @Before
+    public void setUp() throws Exception {
+        setProperty("nuxeo.mongodb.server", "localhost");
+        setProperty("nuxeo.mongodb.dbname", "nuxeo");
+        setProperty(MongoDBAuditBackend.COLLECTION_PROPERTY, COLLECTION);
+        client = MongoDBClientRegistry.acquire("localhost", Collections.<String, String> emptyMap());
+        dropCollections();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (backend != null) {
+            backend.deactivate();
+            backend = null;
+        }
+        dropCollections();
+        MongoDBClientRegistry.release(client);
+        for (String key : properties.keySet()) {
+            Framework.getProperties().remove(key);
+        }
+        properties.clear();
+    }
+
+    protected void setProperty(String key, String value) {
+        properties.put(key, value);
+        Framework.getProperties().put(key, value);
+    }
+
+    protected DB getDB() {
+        return client.getDB("nuxeo");
+    }
+
+    protected void dropCollections() {
+        for (String name : getDB().getCollectionNames()) {
+            if (name.startsWith(COLLECTION)) {
+                getDB().getCollection(name).drop();
+            }
+        }
+    }
+
+    protected MongoDBAuditBackend start(MongoDBAuditBackend backend) {
+        backend.onApplicationStarted();
+        this.backend = backend;
+        return backend;
+    }
+
+    protected MongoDBAuditBackend start() {
+        return start(new MongoDBAuditBackend());
+    }
+
+    protected static LogEntry newEntry(String eventId, String category, String docUUID, String docPath, Date date) {
+        LogEntryImpl entry = new LogEntryImpl();
+        entry.setEventId(eventId);
+        entry.setCategory(category);
+        entry.setDocUUID(docUUID);
+        entry.setDocPath(docPath);
+        entry.setEventDate(date);
+        entry.setLogDate(date);
+        entry.setPrincipalName("bob");
+        entry.setRepositoryId("test");
+        return entry;
+    }
+
+    protected static LogEntry newEntry(String eventId, Date date) {
+        return newEntry(eventId, "eventDocumentCategory", "uuid", "/folder/doc", date);
+    }
+
+    protected static Map<String, FilterMapEntry> filter(String column, String operator, Object value) {
+        FilterMapEntry filter = new FilterMapEntry();
+        filter.setColumnName(column);
+        filter.setOperator(operator);
+        filter.setQueryParameterName(column);
+        filter.setObject(value);
+        return Collections.singletonMap(column, filter);
+    }
+
+    protected List<String> getEventIds(Map<String, FilterMapEntry> filterMap) {
+        List<String> eventIds = new ArrayList<>();
+        for (LogEntry entry : backend.getLogEntriesFor("uuid", filterMap, true)) {
+            eventIds.add(entry.getEventId());
+        }
+        Collections.sort(eventIds);
+        return eventIds;
+    }
+
+    protected static Date utcDate(String date) throws ParseException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.parse(date);
+    }
+
+    protected static List<String> getNames(List<DBCollection> collections) {
+        List<String> names = new ArrayList<>();
+        for (DBCollection collection : collections) {
+            names.add(collection.getName());
+        }
+        return names;
+    }
+
+    protected static List<Long> getIds(List<LogEntry> entries) {
+        List<Long> ids = new ArrayList<>();
+        for (LogEntry entry : entries) {
+            ids.add(Long.valueOf(entry.getId()));
+        }
+        return ids;
+    }
+
+    protected static List<LogEntry> newEntries(int count, Date date) {
+        List<LogEntry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            entries.add(newEntry("documentModified", date));
+        }
+        return entries;
+    }
+
+    @Test
+    public void testWriteAndFlush() throws Exception {
+        // a long interval, only flush() makes the entries visible
+        setProperty("nuxeo.mongodb.audit.flushInterval", "60000");
+        start();
+        Date date = new Date();
+        LogEntry entry = newEntry("documentCreated", "eventDocumentCategory", "uuid1", "/folder/doc", date);
+        backend.addLogEntries(Arrays.asList(entry, newEntry("documentModified", date)));
+        backend.flush();
+
+        // ids are set once written
+        assertTrue(entry.getId() > 0);
+        LogEntry read = backend.getLogEntryByID(entry.getId());
+        assertNotNull(read);
+        assertEquals(entry.getId(), read.getId());
+        assertEquals("documentCreated", read.getEventId());
+        assertEquals("eventDocumentCategory", read.getCategory());
+        assertEquals("uuid1", read.getDocUUID());
+        assertEquals("/folder/doc", read.getDocPath());
+        assertEquals(date, read.getEventDate());
+        assertEquals("bob", read.getPrincipalName());
+        assertEquals(2, getDB().getCollection(COLLECTION).count());
+
+        assertNull(backend.getLogEntryByID(-1));
+    }
+
+    @Test
+    public void testReadPreferenceNotShared() throws Exception {
+        // the read preference of the blob provider is not an option of the client shared with the audit
+        Map<String, String> blobProperties = new HashMap<>();
+        blobProperties.put("readPreference", "secondaryPreferred");
+        blobProperties.put(MongoDBClientRegistry.CONNECTIONS_PER_HOST, "10");
+        assertEquals(Collections.singletonMap(MongoDBClientRegistry.CONNECTIONS_PER_HOST, "10"),
+                MongoDBClientRegistry.getOptions(blobProperties));
+
+        setProperty("nuxeo.mongodb.audit.flushInterval", "60000");
+        start();
+        backend.addLogEntries(newEntries(1, new Date()));
+        backend.flush();
+        // read from the primary right after the flush
+        assertEquals(1, backend.getLogEntriesFor("uuid", null, true).size());
+    }
+
+    @Test
+    public void testBackPressure() throws Exception {
+        setProperty("nuxeo.mongodb.audit.queueSize", "2");
+        setProperty("nuxeo.mongodb.audit.batchSize", "1");
+        CountDownLatch blocked = new CountDownLatch(1);
+        start(new MongoDBAuditBackend() {
+            @Override
+            protected void insert(List<QueuedEntry> batch) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.insert(batch);
+            }
+        });
+        Date date = new Date();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // one entry held by the flusher, two in the queue, the last one waits for room
+            Future<?> future = executor.submit(() -> {
+                for (int i = 0; i < 4; i++) {
+                    backend.addLogEntries(Collections.singletonList(newEntry("documentModified", date)));
+                }
+            });
+            try {
+                future.get(500, TimeUnit.MILLISECONDS);
+                throw new AssertionError("addLogEntries should block on a full queue");
+            } catch (TimeoutException e) {
+                // expected
+            }
+            blocked.countDown();
+            future.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+        backend.flush();
+        assertEquals(4, getDB().getCollection(COLLECTION).count());
+    }
+
+    @Test
+    public void testDrainOnDeactivate() throws Exception {
+        // entries would wait a minute for their batch to be flushed
+        setProperty("nuxeo.mongodb.audit.flushInterval", "60000");
+        setProperty("nuxeo.mongodb.audit.drainTimeout", "10000");
+        start();
+        backend.addLogEntries(newEntries(10, new Date()));
+
+        long t0 = System.currentTimeMillis();
+        backend.deactivate();
+        backend = null;
+        assertTrue(System.currentTimeMillis() - t0 < 10000);
+        assertEquals(10, getDB().getCollection(COLLECTION).count());
+    }
+
+    @Test
+    public void testFlusherSurvivesFailure() throws Exception {
+        CountDownLatch failed = new CountDownLatch(1);
+        start(new MongoDBAuditBackend() {
+            @Override
+            protected void doInsert(List<DBObject> batch) {
+                if (failed.getCount() > 0) {
+                    failed.countDown();
+                    throw new IllegalStateException("failed insert");
+                }
+                super.doInsert(batch);
+            }
+        });
+        Date date = new Date();
+        backend.addLogEntries(newEntries(1, date));
+        assertTrue(failed.await(10, TimeUnit.SECONDS));
+
+        // written by the same flusher, without any flush
+        backend.addLogEntries(newEntries(2, date));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (getDB().getCollection(COLLECTION).count() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(2, getDB().getCollection(COLLECTION).count());
+    }
+
+    @Test
+    public void testPagingWithTies() throws Exception {
+        start();
+        Date date = new Date();
+        // most entries share their event date, the page order falls back on the id
+        List<LogEntry> entries = newEntries(5, date);
+        entries.add(newEntry("documentModified", new Date(date.getTime() - 1000)));
+        entries.add(newEntry("documentModified", new Date(date.getTime() + 1000)));
+        backend.addLogEntries(entries);
+        backend.flush();
+
+        List<Long> byOffset = new ArrayList<>();
+        for (int pageNb = 1; pageNb <= 3; pageNb++) {
+            List<LogEntry> page = backend.queryLogsByPage(null, (Date) null, null, null, pageNb, 3);
+            assertEquals(pageNb < 3 ? 3 : 1, page.size());
+            byOffset.addAll(getIds(page));
+        }
+        assertTrue(backend.queryLogsByPage(null, (Date) null, null, null, 4, 3).isEmpty());
+        assertEquals(7, new HashSet<>(byOffset).size());
+        assertEquals(entries.get(6).getId(), byOffset.get(0).longValue());
+        assertEquals(entries.get(5).getId(), byOffset.get(6).longValue());
+
+        List<Long> byToken = new ArrayList<>();
+        String token = null;
+        int pages = 0;
+        do {
+            LogEntryPage page = backend.queryLogsByPage(null, (Date) null, null, null, token, 3);
+            byToken.addAll(getIds(page.getEntries()));
+            token = page.getNextToken();
+            pages++;
+        } while (token != null);
+        assertEquals(3, pages);
+        assertEquals(byOffset, byToken);
+
+        // the date bound of the token is merged with the one of the limit
+        List<Long> byTokenWithLimit = new ArrayList<>();
+        token = null;
+        do {
+            LogEntryPage page = backend.queryLogsByPage(null, date, null, null, token, 2);
+            byTokenWithLimit.addAll(getIds(page.getEntries()));
+            token = page.getNextToken();
+        } while (token != null);
+        assertEquals(byOffset.subList(0, 6), byTokenWithLimit);
+    }
+
+    @Test
+    public void testLastPageToken() throws Exception {
+        start();
+        backend.addLogEntries(newEntries(4, new Date()));
+        backend.flush();
+
+        LogEntryPage page = backend.queryLogsByPage(null, (Date) null, null, null, (String) null, 2);
+        assertEquals(2, page.getEntries().size());
+        assertNotNull(page.getNextToken());
+        // a full last page cannot tell it is the last one
+        page = backend.queryLogsByPage(null, (Date) null, null, null, page.getNextToken(), 2);
+        assertEquals(2, page.getEntries().size());
+        assertNotNull(page.getNextToken());
+        page = backend.queryLogsByPage(null, (Date) null, null, null, page.getNextToken(), 2);
+        assertTrue(page.getEntries().isEmpty());
+        assertNull(page.getNextToken());
+
+        // a partial page is the last one
+        page = backend.queryLogsByPage(null, (Date) null, null, null, (String) null, 5);
+        assertEquals(4, page.getEntries().size());
+        assertNull(page.getNextToken());
+    }
+
+    @Test
+    public void testPathPrefix() throws Exception {
+        start();
+        Date date = new Date();
+        String category = "eventDocumentCategory";
+        backend.addLogEntries(Arrays.asList( //
+                newEntry("documentModified", category, "uuid1", "/a.b(c)/doc", date), //
+                // would match the prefix read as a regular expression
+                newEntry("documentModified", category, "uuid2", "/aXb(c)/doc", date), //
+                newEntry("documentModified", category, "uuid3", "/a.bc/doc", date), //
+                newEntry("documentModified", category, "uuid4", "/other/a.b(c)/doc", date)));
+        backend.flush();
+
+        List<LogEntry> entries = backend.queryLogsByPage(null, (Date) null, null, "/a.b(c)", 1, 10);
+        assertEquals(1, entries.size());
+        assertEquals("uuid1", entries.get(0).getDocUUID());
+        entries = backend.queryLogsByPage(null, (Date) null, null, "/a.b(c)", (String) null, 10).getEntries();
+        assertEquals(1, entries.size());
+        assertEquals("uuid1", entries.get(0).getDocUUID());
+    }
+
+    @Test
+    public void testFilters() throws Exception {
+        start();
+        Date date = new Date();
+        String category = "eventDocumentCategory";
+        backend.addLogEntries(Arrays.asList( //
+                newEntry("documentCreated", category, "uuid", "/a.b(c)/doc", new Date(date.getTime() - 2000)), //
+                newEntry("documentModified", category, "uuid", "/aXb(c)/doc", new Date(date.getTime() - 1000)), //
+                newEntry("documentRemoved", category, "uuid", "/a.b/c%d", date), //
+                newEntry("documentModified", category, "other", "/a.b(c)/doc", date)));
+        backend.flush();
+
+        assertEquals(Arrays.asList("documentCreated", "documentModified", "documentRemoved"), getEventIds(null));
+        assertEquals(Arrays.asList("documentCreated"), getEventIds(filter("eventId", "=", "documentCreated")));
+        assertEquals(Arrays.asList("documentCreated", "documentRemoved"),
+                getEventIds(filter("eventId", "<>", "documentModified")));
+        assertEquals(Arrays.asList("documentCreated", "documentRemoved"),
+                getEventIds(filter("eventId", "!=", "documentModified")));
+        assertEquals(Arrays.asList("documentCreated", "documentModified"),
+                getEventIds(filter("eventDate", "<", date)));
+        assertEquals(Arrays.asList("documentCreated", "documentModified", "documentRemoved"),
+                getEventIds(filter("eventDate", "<=", date)));
+        assertEquals(Arrays.asList("documentRemoved"), getEventIds(filter("eventDate", ">", //
+                new Date(date.getTime() - 1000))));
+        assertEquals(Arrays.asList("documentModified", "documentRemoved"), getEventIds(filter("eventDate", ">=", //
+                new Date(date.getTime() - 1000))));
+        assertEquals(Arrays.asList("documentCreated", "documentRemoved"),
+                getEventIds(filter("eventId", "in", Arrays.asList("documentCreated", "documentRemoved"))));
+
+        // LIKE wildcards
+        assertEquals(Arrays.asList("documentModified"), getEventIds(filter("eventId", "LIKE", "%Mod%")));
+        assertEquals(Arrays.asList("documentCreated"), getEventIds(filter("eventId", "LIKE", "documentC%")));
+        assertEquals(Arrays.asList("documentCreated", "documentModified", "documentRemoved"),
+                getEventIds(filter("eventId", "like", "%")));
+        assertEquals(Arrays.asList("documentModified"), getEventIds(filter("eventId", "LIKE", "documentMod_fied")));
+        assertEquals(Arrays.asList(), getEventIds(filter("eventId", "LIKE", "document")));
+        // LIKE patterns are anchored and regular expression metacharacters match literally
+        assertEquals(Arrays.asList("documentCreated"), getEventIds(filter("docPath", "LIKE", "/a.b(c)%")));
+        assertEquals(Arrays.asList("documentCreated", "documentModified"),
+                getEventIds(filter("docPath", "LIKE", "/a_b(c)/doc")));
+        assertEquals(Arrays.asList("documentRemoved"), getEventIds(filter("docPath", "LIKE", "/a.b/c%d")));
+        assertEquals(Arrays.asList(), getEventIds(filter("docPath", "LIKE", "/a.b(c")));
+    }
+
+    @Test(expected = NuxeoException.class)
+    public void testFilterUnknownProperty() throws Exception {
+        start();
+        backend.getLogEntriesFor("uuid", filter("foo", "=", "bar"), true);
+    }
+
+    @Test(expected = NuxeoException.class)
+    public void testFilterUnknownOperator() throws Exception {
+        start();
+        backend.getLogEntriesFor("uuid", filter("eventId", "~", "documentCreated"), true);
+    }
+
+    @Test
+    public void testWithoutExtendedInfos() throws Exception {
+        start();
+        LogEntry entry = newEntry("documentModified", new Date());
+        Map<String, ExtendedInfo> infos = new HashMap<>();
+        infos.put("comment", backend.newExtendedInfo("some comment"));
+        entry.setExtendedInfos(infos);
+        backend.addLogEntries(Collections.singletonList(entry));
+        backend.flush();
+
+        List<LogEntry> entries = backend.getLogEntriesFor("uuid", null, true, true);
+        assertEquals(1, entries.size());
+        assertEquals("some comment", entries.get(0).getExtendedInfos().get("comment").getSerializableValue());
+
+        entries = backend.getLogEntriesFor("uuid", null, true, false);
+        assertEquals(1, entries.size());
+        assertEquals("documentModified", entries.get(0).getEventId());
+        assertEquals(entry.getId(), entries.get(0).getId());
+        assertTrue(entries.get(0).getExtendedInfos().isEmpty());
+    }
+
+    @Test
+    public void testEventHistogram() throws Exception {
+        start();
+        long from = 1444000000000L;
+        backend.addLogEntries(Arrays.asList( //
+                newEntry("documentCreated", new Date(from - 1)), //
+                newEntry("documentCreated", new Date(from)), //
+                newEntry("documentModified", new Date(from + 999)), //
+                newEntry("documentModified", new Date(from + 1000)), //
+                newEntry("documentModified", new Date(from + 2500)), //
+                newEntry("documentCreated", new Date(from + 2999)), //
+                newEntry("documentCreated", new Date(from + 3000))));
+        backend.flush();
+
+        // the last bucket is truncated at the end
+        EventHistogram histogram = backend.getEventHistogram("eventId", null, null, new Date(from),
+                new Date(from + 2600), 1000);
+        assertEquals(from, histogram.getStart());
+        assertEquals(1000, histogram.getInterval());
+        assertArrayEquals(new String[] { "documentCreated", "documentModified" }, histogram.getKeys());
+        assertArrayEquals(new long[] { 1, 0, 0 }, histogram.getCounts()[0]);
+        assertArrayEquals(new long[] { 1, 1, 1 }, histogram.getCounts()[1]);
+        assertEquals(3, histogram.getTotal(1));
+
+        // the end is excluded
+        histogram = backend.getEventHistogram("eventId", new String[] { "documentCreated" }, null, new Date(from),
+                new Date(from + 3000), 1000);
+        assertArrayEquals(new String[] { "documentCreated" }, histogram.getKeys());
+        assertArrayEquals(new long[] { 1, 0, 1 }, histogram.getCounts()[0]);
+
+        // a single bucket, without grouping
+        histogram = backend.getEventHistogram(null, null, null, new Date(from), new Date(from + 3001), 0);
+        assertEquals(3001, histogram.getInterval());
+        assertArrayEquals(new String[] { "" }, histogram.getKeys());
+        assertArrayEquals(new long[] { 6 }, histogram.getCounts()[0]);
+    }
+
+    @Test
+    public void testEventHistogramInvalidRange() throws Exception {
+        start();
+        Date date = new Date();
+        for (Date[] range : new Date[][] { { null, date }, { date, null }, { date, date } }) {
+            try {
+                backend.getEventHistogram("eventId", null, null, range[0], range[1], 1000);
+                throw new AssertionError("invalid range should be rejected");
+            } catch (NuxeoException e) {
+                // expected
+            }
+        }
+        // a year of 1 ms buckets
+        try {
+            backend.getEventHistogram("eventId", null, null, new Date(date.getTime() - TimeUnit.DAYS.toMillis(365)),
+                    date, 1);
+            throw new AssertionError("too many buckets should be rejected");
+        } catch (NuxeoException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPartitionFanOut() throws Exception {
+        setProperty(MongoDBAuditBackend.PARTITIONING_PROPERTY, AuditPartitioning.MONTHLY);
+        start();
+        LogEntry august = newEntry("documentCreated", utcDate("2015-08-15"));
+        LogEntry september = newEntry("documentModified", utcDate("2015-09-15"));
+        LogEntry october = newEntry("documentModified", utcDate("2015-10-15"));
+        backend.addLogEntries(Arrays.asList(august, september, october));
+        backend.flush();
+
+        assertFalse(getDB().collectionExists(COLLECTION));
+        for (String partition : new String[] { "_201508", "_201509", "_201510" }) {
+            DBCollection collection = getDB().getCollection(COLLECTION + partition);
+            assertEquals(1, collection.count());
+            assertTrue(collection.getIndexInfo().size() > 1);
+        }
+
+        // most recent first across partitions
+        List<LogEntry> entries = backend.getLogEntriesFor("uuid", null, true);
+        assertEquals(Arrays.asList(october.getId(), september.getId(), august.getId()), getIds(entries));
+        entries = backend.getLogEntriesFor("uuid", filter("eventDate", ">=", utcDate("2015-09-01")), true);
+        assertEquals(Arrays.asList(october.getId(), september.getId()), getIds(entries));
+        entries = backend.getLogEntriesFor("uuid", filter("eventDate", "<", utcDate("2015-09-01")), true);
+        assertEquals(Arrays.asList(august.getId()), getIds(entries));
+
+        entries = backend.queryLogsByPage(null, utcDate("2015-09-01"), null, null, 1, 10);
+        assertEquals(Arrays.asList(october.getId(), september.getId()), getIds(entries));
+        // the first partitions are skipped on their count
+        entries = backend.queryLogsByPage(null, (Date) null, null, null, 2, 2);
+        assertEquals(Arrays.asList(august.getId()), getIds(entries));
+        List<Long> ids = new ArrayList<>();
+        String token = null;
+        do {
+            LogEntryPage page = backend.queryLogsByPage(null, (Date) null, null, null, token, 1);
+            ids.addAll(getIds(page.getEntries()));
+            token = page.getNextToken();
+        } while (token != null);
+        assertEquals(Arrays.asList(october.getId(), september.getId(), august.getId()), ids);
+
+        assertEquals("documentCreated", backend.getLogEntryByID(august.getId()).getEventId());
+        assertEquals(Long.valueOf(2), backend.getEventsCount("documentModified"));
+        EventHistogram histogram = backend.getEventHistogram(null, null, null, utcDate("2015-08-01"),
+                utcDate("2015-11-01"), 0);
+        assertArrayEquals(new long[] { 3 }, histogram.getCounts()[0]);
+    }
+
+    @Test
+    public void testPartitionCache() throws Exception {
+        AuditPartitioning partitioning = new AuditPartitioning(getDB(), COLLECTION, AuditPartitioning.MONTHLY);
+        getDB().getCollection(COLLECTION + "_201508").insert(new BasicDBObject("_id", Long.valueOf(1)));
+        // not partitions
+        getDB().getCollection(COLLECTION).insert(new BasicDBObject("_id", Long.valueOf(1)));
+        getDB().getCollection(COLLECTION + "_2015").insert(new BasicDBObject("_id", Long.valueOf(1)));
+        getDB().getCollection(COLLECTION + "_201509x").insert(new BasicDBObject("_id", Long.valueOf(1)));
+        assertEquals(Arrays.asList(COLLECTION + "_201508"), getNames(partitioning.getPartitions(null, null)));
+
+        // created by another node, seen once reloaded
+        getDB().getCollection(COLLECTION + "_201509").insert(new BasicDBObject("_id", Long.valueOf(1)));
+        assertEquals(Arrays.asList(COLLECTION + "_201508"), getNames(partitioning.getPartitions(null, null)));
+        partitioning.refresh();
+        assertEquals(Arrays.asList(COLLECTION + "_201509", COLLECTION + "_201508"),
+                getNames(partitioning.getPartitions(null, null)));
+
+        // written through this instance
+        DBCollection partition = partitioning.getPartition(utcDate("2015-10-15"));
+        assertEquals(COLLECTION + "_201510", partition.getName());
+        partition.insert(new BasicDBObject("_id", Long.valueOf(1)));
+        partitioning.addPartition(partition);
+        assertEquals(Arrays.asList(COLLECTION + "_201510", COLLECTION + "_201509", COLLECTION + "_201508"),
+                getNames(partitioning.getPartitions(null, null)));
+
+        // ranges
+        assertEquals(Arrays.asList(COLLECTION + "_201509"),
+                getNames(partitioning.getPartitions(utcDate("2015-09-01"), utcDate("2015-10-01"))));
+        assertEquals(Arrays.asList(COLLECTION + "_201509", COLLECTION + "_201508"),
+                getNames(partitioning.getPartitions(utcDate("2015-08-31"), utcDate("2015-09-02"))));
+        assertEquals(Arrays.asList(COLLECTION + "_201510", COLLECTION + "_201509"),
+                getNames(partitioning.getPartitions(utcDate("2015-09-15"), null)));
+
+        // partitions ending at the date are dropped, not the ones overlapping it
+        assertEquals(1, partitioning.dropPartitions(utcDate("2015-09-01")));
+        assertFalse(getDB().collectionExists(COLLECTION + "_201508"));
+        assertEquals(0, partitioning.dropPartitions(utcDate("2015-09-30")));
+        assertEquals(Arrays.asList(COLLECTION + "_201510", COLLECTION + "_201509"),
+                getNames(partitioning.getPartitions(null, null)));
+    }
+
+    @Test
+    public void testRetentionDrop() throws Exception {
+        setProperty(MongoDBAuditBackend.PARTITIONING_PROPERTY, AuditPartitioning.MONTHLY);
+        setProperty(MongoDBAuditBackend.RETENTION_DAYS_PROPERTY, "30");
+        getDB().getCollection(COLLECTION + "_200001").insert(new BasicDBObject("_id", Long.valueOf(1)));
+        // dropped on startup
+        start();
+        assertFalse(getDB().collectionExists(COLLECTION + "_200001"));
+
+        // created by another node, dropped with the next new partition
+        getDB().getCollection(COLLECTION + "_200002").insert(new BasicDBObject("_id", Long.valueOf(1)));
+        backend.addLogEntries(newEntries(1, new Date()));
+        backend.flush();
+        assertFalse(getDB().collectionExists(COLLECTION + "_200002"));
+        assertEquals(1, backend.getLogEntriesFor("uuid", null, true).size());
+    }
+
+    @Test
+    public void testPartitionIndexesRetried() throws Exception {
+        setProperty(MongoDBAuditBackend.PARTITIONING_PROPERTY, AuditPartitioning.MONTHLY);
+        AtomicBoolean failed = new AtomicBoolean();
+        start(new MongoDBAuditBackend() {
+            @Override
+            protected void createIndexes(DBCollection collection) {
+                if (failed.compareAndSet(false, true)) {
+                    throw new MongoException("failed index creation");
+                }
+                super.createIndexes(collection);
+            }
+        });
+        backend.addLogEntries(newEntries(1, utcDate("2015-10-15")));
+        backend.flush();
+
+        // written by the next attempt, with the indexes
+        assertTrue(failed.get());
+        DBCollection collection = getDB().getCollection(COLLECTION + "_201510");
+        assertEquals(1, collection.count());
+        assertTrue(collection.getIndexInfo().size() > 1);
+    }
+
+}
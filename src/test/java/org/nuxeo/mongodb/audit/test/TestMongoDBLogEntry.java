@@ -0,0 +1,188 @@
+package org.nuxeo.mongodb.audit.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.SerializationException;
+import org.apache.commons.lang.SerializationUtils;
+import org.bson.types.Binary;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.platform.audit.api.ExtendedInfo;
+import org.nuxeo.ecm.platform.audit.api.LogEntry;
+import org.nuxeo.ecm.platform.audit.impl.LogEntryImpl;
+import org.nuxeo.mongodb.audit.MongoDBExtendedInfo;
+import org.nuxeo.mongodb.audit.MongoDBLogEntry;
+import org.nuxeo.mongodb.client.MongoDBClientRegistry;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+
+/**
+ * Round trips of log entries and their extended infos through MongoDB.
+ */
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestMongoDBLogEntry {
+
+    protected static final byte SERIALIZED_SUBTYPE = (byte) 0x80;
+
+    protected MongoClient client;
+
+    protected DBCollection collection;
+
+    @Before
+    public void setUp() throws Exception {
+        client = MongoDBClientRegistry.acquire("localhost", Collections.<String, String> emptyMap());
+        collection = client.getDB("nuxeo").getCollection("auditentrytest");
+        collection.drop();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        collection.drop();
+        MongoDBClientRegistry.release(client);
+    }
+
+    protected static LogEntry newEntry(Map<String, Serializable> values) {
+        LogEntryImpl entry = new LogEntryImpl();
+        entry.setId(1);
+        entry.setEventId("documentModified");
+        entry.setEventDate(new Date());
+        entry.setPrincipalName("bob");
+        entry.setDocUUID("uuid");
+        Map<String, ExtendedInfo> infos = new HashMap<>();
+        for (Map.Entry<String, Serializable> value : values.entrySet()) {
+            infos.put(value.getKey(), new MongoDBExtendedInfo(value.getValue()));
+        }
+        entry.setExtendedInfos(infos);
+        return entry;
+    }
+
+    /**
+     * Writes an entry and reads back its stored document.
+     */
+    protected DBObject write(LogEntry entry) {
+        collection.insert(MongoDBLogEntry.toDBObject(entry));
+        return collection.findOne(new BasicDBObject(MongoDBLogEntry.ID, entry.getId()));
+    }
+
+    protected static Serializable getValue(LogEntry entry, String key) {
+        return entry.getExtendedInfos().get(key).getSerializableValue();
+    }
+
+    @Test
+    public void testNativeInfos() throws Exception {
+        Date date = new Date();
+        Map<String, Serializable> values = new HashMap<>();
+        values.put("string", "foo");
+        values.put("long", Long.valueOf(Long.MAX_VALUE));
+        values.put("int", Integer.valueOf(42));
+        values.put("double", Double.valueOf(1.5));
+        values.put("boolean", Boolean.TRUE);
+        values.put("date", date);
+        values.put("bytes", new byte[] { 1, 2, 3 });
+        DBObject dbEntry = write(newEntry(values));
+
+        // stored with their BSON type, readable by other tools
+        DBObject dbInfos = (DBObject) dbEntry.get(MongoDBLogEntry.EXTENDED_INFOS);
+        assertEquals("foo", dbInfos.get("string"));
+        assertEquals(Long.valueOf(Long.MAX_VALUE), dbInfos.get("long"));
+        assertEquals(Integer.valueOf(42), dbInfos.get("int"));
+        assertEquals(date, dbInfos.get("date"));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) dbInfos.get("bytes"));
+
+        LogEntry entry = MongoDBLogEntry.fromDBObject(dbEntry);
+        assertEquals(1, entry.getId());
+        assertEquals("documentModified", entry.getEventId());
+        assertEquals("bob", entry.getPrincipalName());
+        assertNull(entry.getCategory());
+        assertEquals(values.size(), entry.getExtendedInfos().size());
+        assertEquals("foo", getValue(entry, "string"));
+        assertEquals(Long.valueOf(Long.MAX_VALUE), getValue(entry, "long"));
+        assertEquals(Integer.valueOf(42), getValue(entry, "int"));
+        assertEquals(Double.valueOf(1.5), getValue(entry, "double"));
+        assertEquals(Boolean.TRUE, getValue(entry, "boolean"));
+        assertEquals(date, getValue(entry, "date"));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) getValue(entry, "bytes"));
+        assertEquals(Long.valueOf(Long.MAX_VALUE), entry.getExtendedInfos().get("long").getValue(Long.class));
+    }
+
+    @Test
+    public void testSerializedInfos() throws Exception {
+        ArrayList<String> list = new ArrayList<>(Arrays.asList("a", "b"));
+        DBObject dbEntry = write(newEntry(Collections.<String, Serializable> singletonMap("list", list)));
+
+        Object stored = ((DBObject) dbEntry.get(MongoDBLogEntry.EXTENDED_INFOS)).get("list");
+        assertTrue(stored instanceof Binary);
+        assertEquals(SERIALIZED_SUBTYPE, ((Binary) stored).getType());
+
+        LogEntry entry = MongoDBLogEntry.fromDBObject(dbEntry);
+        assertEquals(list, getValue(entry, "list"));
+    }
+
+    @Test
+    public void testLazyDecoding() throws Exception {
+        // not a Java serialization stream, fails when decoded
+        Binary invalid = new Binary(SERIALIZED_SUBTYPE, new byte[] { 1, 2, 3 });
+        DBObject dbEntry = new BasicDBObject(MongoDBLogEntry.ID, Long.valueOf(1)).append(
+                MongoDBLogEntry.EXTENDED_INFOS, new BasicDBObject("invalid", invalid));
+
+        LogEntry entry = MongoDBLogEntry.fromDBObject(dbEntry);
+        assertEquals(1, entry.getId());
+        // written back as read, without being decoded
+        DBObject written = MongoDBLogEntry.toDBObject(entry);
+        assertSame(invalid, ((DBObject) written.get(MongoDBLogEntry.EXTENDED_INFOS)).get("invalid"));
+        try {
+            getValue(entry, "invalid");
+            fail("invalid value should fail when decoded");
+        } catch (SerializationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testJavaSerialization() throws Exception {
+        ArrayList<String> list = new ArrayList<>(Arrays.asList("a", "b"));
+        Map<String, Serializable> values = new HashMap<>();
+        values.put("string", "foo");
+        values.put("list", list);
+        DBObject dbEntry = write(newEntry(values));
+
+        // serialized as read, before its infos are accessed
+        LogEntry entry = MongoDBLogEntry.fromDBObject(dbEntry);
+        LogEntry copy = (LogEntry) SerializationUtils.clone(entry);
+        assertEquals(entry.getId(), copy.getId());
+        assertEquals("documentModified", copy.getEventId());
+        assertEquals(2, copy.getExtendedInfos().size());
+        assertEquals("foo", getValue(copy, "string"));
+        assertEquals(list, getValue(copy, "list"));
+
+        // infos accessed but not decoded
+        entry = MongoDBLogEntry.fromDBObject(dbEntry);
+        entry.getExtendedInfos();
+        copy = (LogEntry) SerializationUtils.clone(entry);
+        assertEquals("foo", getValue(copy, "string"));
+        assertEquals(list, getValue(copy, "list"));
+    }
+
+}
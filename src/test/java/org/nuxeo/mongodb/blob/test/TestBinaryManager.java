@@ -4,31 +4,49 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.core.blob.binary.Binary;
 import org.nuxeo.ecm.core.blob.binary.BinaryGarbageCollector;
 import org.nuxeo.ecm.core.blob.binary.BinaryManagerStatus;
 import org.nuxeo.mongodb.blob.GridFSBinaryManager;
+import org.nuxeo.mongodb.blob.GridFSBinaryManager.GridFSBinary;
+import org.nuxeo.mongodb.blob.GridFSChunkWriter;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
 import org.nuxeo.runtime.test.runner.RuntimeFeature;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
 
 @RunWith(FeaturesRunner.class)
 @Features(RuntimeFeature.class)
@@ -38,6 +56,8 @@ public class TestBinaryManager {
 
     protected static final String CONTENT_MD5 = "d25ea4f4642073b7f218024d397dbaef";
 
+    protected static final String CONTENT_SHA256 = "cdccc6b7fe935976712efda8c4d79893b704a8ca396d5d76b512304b201a1823";
+
     protected static final String CONTENT2 = "abc";
 
     protected static final String CONTENT2_MD5 = "900150983cd24fb0d6963f7d28e17f72";
@@ -50,17 +70,22 @@ public class TestBinaryManager {
 
     protected GridFSBinaryManager getBinaryManager() throws IOException {
         if (binaryManager == null) {
-            binaryManager = new GridFSBinaryManager();
-            Map<String, String> config = new HashMap<String, String>();
-            config.put("server", "localhost");
-            config.put("dbname", "nuxeo");
-            config.put("bucket", "nxblobs");
-            binaryManager.initialize("repo", config);
-            return binaryManager;
+            binaryManager = newBinaryManager(Collections.<String, String> emptyMap());
         }
         return binaryManager;
     }
 
+    protected GridFSBinaryManager newBinaryManager(Map<String, String> properties) throws IOException {
+        GridFSBinaryManager manager = new GridFSBinaryManager();
+        Map<String, String> config = new HashMap<String, String>();
+        config.put("server", "localhost");
+        config.put("dbname", "nuxeo");
+        config.put("bucket", "nxblobs");
+        config.putAll(properties);
+        manager.initialize("repo", config);
+        return manager;
+    }
+
     protected Set<String> listObjects() throws Exception {
 
         Set<String> res = new HashSet<String>();
@@ -88,6 +113,8 @@ public class TestBinaryManager {
     public void setUp() throws Exception {
         binaryManager = getBinaryManager();
         removeAllObjects();
+        // GC runs interrupted by previous tests
+        binaryManager.getGridFS().getDB().getCollection("nxblobs.gc").drop();
     }
 
     @Test
@@ -119,6 +146,256 @@ public class TestBinaryManager {
         assertEquals(1, listObjects().size());
     }
 
+    @Test
+    public void testMixedDigests() throws Exception {
+        // store with the default MD5 digest
+        binaryManager.getBinary(Blobs.createBlob(CONTENT));
+
+        GridFSBinaryManager sha256Manager = newBinaryManager(Collections.singletonMap("digest", "SHA-256"));
+        try {
+            Binary binary = sha256Manager.getBinary(Blobs.createBlob(CONTENT));
+            assertEquals(CONTENT_SHA256, binary.getDigest());
+
+            // both keys are readable from the same bucket
+            assertEquals(new HashSet<>(Arrays.asList(CONTENT_MD5, CONTENT_SHA256)), listObjects());
+            assertEquals(CONTENT, toString(sha256Manager.getBinary(CONTENT_MD5).getStream()));
+            assertEquals(CONTENT, toString(sha256Manager.getBinary(CONTENT_SHA256).getStream()));
+        } finally {
+            sha256Manager.close();
+        }
+    }
+
+    @Test
+    public void testRangeRead() throws Exception {
+        // small chunks so that the content spans several of them
+        GridFSBinaryManager manager = newBinaryManager(Collections.singletonMap("chunkSize", "5"));
+        try {
+            GridFSBinary binary = (GridFSBinary) manager.getBinary(Blobs.createBlob(CONTENT));
+            byte[] bytes = CONTENT.getBytes("UTF-8");
+            assertEquals(5, manager.getGridFS().getDB().getCollection("nxblobs.chunks").count());
+
+            assertEquals(new String(bytes, 7, 9, "UTF-8"), toString(binary.getStream(7, 9)));
+            assertEquals(new String(bytes, 20, bytes.length - 20, "UTF-8"),
+                    toString(binary.getStream(20, bytes.length - 20)));
+
+            try (InputStream in = binary.getStream()) {
+                assertEquals(12, in.skip(12));
+                assertEquals(bytes[12], (byte) in.read());
+                assertEquals(bytes.length - 13, in.skip(Long.MAX_VALUE));
+                assertEquals(-1, in.read());
+            }
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testParallelUpload() throws Exception {
+        Map<String, String> config = new HashMap<String, String>();
+        config.put("chunkSize", "5");
+        config.put("uploadBatchSize", "2");
+        config.put("uploadParallelism", "3");
+        GridFSBinaryManager manager = newBinaryManager(config);
+        try {
+            Binary binary = manager.getBinary(Blobs.createBlob(CONTENT));
+            assertEquals(CONTENT_MD5, binary.getDigest());
+            assertEquals(5, manager.getGridFS().getDB().getCollection("nxblobs.chunks").count());
+            assertEquals(CONTENT, toString(manager.getBinary(CONTENT_MD5).getStream()));
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testParallelUploadFailure() throws Exception {
+        DBCollection chunks = binaryManager.getGridFS().getDB().getCollection("nxblobs.chunks");
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            GridFSChunkWriter writer = new GridFSChunkWriter(chunks, 5, 2, executor, 3,
+                    WriteConcern.ACKNOWLEDGED);
+            byte[] bytes = new byte[5 * 100];
+            for (int i = 0; i < 20; i++) {
+                // the stream fails while batches are still being inserted
+                InputStream in = new SequenceInputStream(new ByteArrayInputStream(bytes), new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        throw new IOException("failed read");
+                    }
+                });
+                try {
+                    writer.write("failed-read", in);
+                    fail("write should fail");
+                } catch (IOException e) {
+                    assertEquals("failed read", e.getMessage());
+                }
+                assertEquals(0, chunks.count(new BasicDBObject("files_id", "failed-read")));
+            }
+
+            // a batch fails on the chunk already there
+            chunks.insert(new BasicDBObject("files_id", "failed-insert").append("n", 50));
+            try {
+                writer.write("failed-insert", new ByteArrayInputStream(bytes));
+                fail("write should fail");
+            } catch (IOException e) {
+                // expected
+            }
+            assertEquals(0, chunks.count(new BasicDBObject("files_id", "failed-insert")));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        File cacheDir = Files.createTempDirectory("gridfscache").toFile();
+        try {
+            Map<String, String> config = Collections.singletonMap("cacheDir", cacheDir.getPath());
+            GridFSBinaryManager manager = newBinaryManager(config);
+            File file;
+            try {
+                manager.getBinary(Blobs.createBlob(CONTENT));
+                file = manager.getBinary(CONTENT_MD5).getFile();
+                assertEquals(CONTENT, FileUtils.readFileToString(file, "UTF-8"));
+                // keyed by digest, shared by all binaries
+                assertEquals(file, manager.getBinary(CONTENT_MD5).getFile());
+            } finally {
+                manager.close();
+            }
+
+            // survives a restart, and serves streams without GridFS
+            manager = newBinaryManager(config);
+            try {
+                Binary binary = manager.getBinary(CONTENT_MD5);
+                removeObject(CONTENT_MD5);
+                assertEquals(file, binary.getFile());
+                assertEquals(CONTENT, toString(binary.getStream()));
+            } finally {
+                manager.close();
+            }
+        } finally {
+            FileUtils.deleteQuietly(cacheDir);
+        }
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        File cacheDir = Files.createTempDirectory("gridfscache").toFile();
+        GridFSBinaryManager manager = newBinaryManager(Collections.singletonMap("cacheDir", cacheDir.getPath()));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            manager.getBinary(Blobs.createBlob(CONTENT));
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                futures.add(executor.submit(() -> toString(manager.getBinary(CONTENT_MD5).getStream())));
+            }
+            for (Future<String> future : futures) {
+                assertEquals(CONTENT, future.get());
+            }
+            // all the readers shared a single download
+            assertEquals(1, manager.getBlobCache().getNumberOfDownloads());
+        } finally {
+            executor.shutdown();
+            manager.close();
+            FileUtils.deleteQuietly(cacheDir);
+        }
+    }
+
+    @Test
+    public void testGetBinaries() throws Exception {
+        binaryManager.getBinary(Blobs.createBlob(CONTENT));
+        binaryManager.getBinary(Blobs.createBlob(CONTENT2));
+
+        Map<String, GridFSBinary> binaries = binaryManager.getBinaries(
+                Arrays.asList(CONTENT_MD5, CONTENT2_MD5, CONTENT3_MD5));
+        assertEquals(new HashSet<>(Arrays.asList(CONTENT_MD5, CONTENT2_MD5)), binaries.keySet());
+        assertEquals(3, binaries.get(CONTENT2_MD5).getLength());
+        assertEquals(CONTENT, toString(binaries.get(CONTENT_MD5).getStream()));
+    }
+
+    @Test
+    public void testConcurrentStores() throws Exception {
+        List<GridFSBinaryManager> nodes = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int i = 0; i < 8; i++) {
+                nodes.add(newBinaryManager(Collections.<String, String> emptyMap()));
+            }
+            List<Future<Binary>> futures = new ArrayList<>();
+            for (GridFSBinaryManager node : nodes) {
+                futures.add(executor.submit(() -> node.getBinary(Blobs.createBlob(CONTENT))));
+            }
+            for (Future<Binary> future : futures) {
+                assertEquals(CONTENT_MD5, future.get().getDigest());
+            }
+            // a single files document, and no orphan chunk
+            assertEquals(1, binaryManager.getGridFS().getDB().getCollection("nxblobs.files").count());
+            assertEquals(1, binaryManager.getGridFS().getDB().getCollection("nxblobs.chunks").count());
+        } finally {
+            executor.shutdown();
+            for (GridFSBinaryManager node : nodes) {
+                node.close();
+            }
+        }
+    }
+
+    @Test
+    public void testStoreAfterRemoteGC() throws Exception {
+        // cached by this node
+        binaryManager.getBinary(Blobs.createBlob(CONTENT));
+        assertNotNull(binaryManager.getBinary(CONTENT_MD5));
+
+        // deleted by the garbage collector of another node
+        GridFSBinaryManager otherNode = newBinaryManager(Collections.<String, String> emptyMap());
+        try {
+            BinaryGarbageCollector gc = otherNode.getGarbageCollector();
+            waitForClock();
+            gc.start();
+            gc.stop(true);
+            assertEquals(1, gc.getStatus().numBinariesGC);
+        } finally {
+            otherNode.close();
+        }
+        assertEquals(Collections.emptySet(), listObjects());
+
+        // stored again despite the stale cache entry
+        Binary binary = binaryManager.getBinary(Blobs.createBlob(CONTENT));
+        assertEquals(Collections.singleton(CONTENT_MD5), listObjects());
+        assertEquals(CONTENT, toString(binary.getStream()));
+    }
+
+    @Test
+    public void testStoreDuplicates() throws Exception {
+        DBCollection chunks = binaryManager.getGridFS().getDB().getCollection("nxblobs.chunks");
+        int count = 1000;
+
+        for (int i = 0; i < count; i++) {
+            binaryManager.getBinary(Blobs.createBlob(CONTENT));
+        }
+
+        // duplicates never reach GridFS: one files document and one chunk
+        assertEquals(1, listObjects().size());
+        assertEquals(1, chunks.count());
+    }
+
+    @Test
+    public void testProfiles() throws Exception {
+        for (String writeConcern : new String[] { "acknowledged", "majority" }) {
+            Map<String, String> config = new HashMap<>();
+            config.put("write.writeConcern", writeConcern);
+            config.put("read.readPreference", "secondaryPreferred");
+            GridFSBinaryManager manager = newBinaryManager(config);
+            try {
+                String digest = manager.getBinary(Blobs.createBlob(writeConcern)).getDigest();
+                // found on the primary even if not replicated yet
+                Binary binary = manager.getBinary(digest);
+                assertNotNull(binary);
+                assertEquals(writeConcern, toString(binary.getStream()));
+            } finally {
+                manager.close();
+            }
+        }
+    }
+
     /**
      * NOTE THAT THIS TEST WILL REMOVE ALL FILES IN THE BUCKET!!!
      */
@@ -149,6 +426,7 @@ public class TestBinaryManager {
         // GC in non-delete mode
         BinaryGarbageCollector gc = binaryManager.getGarbageCollector();
         assertFalse(gc.isInProgress());
+        waitForClock();
         gc.start();
         assertTrue(gc.isInProgress());
         gc.mark(CONTENT_MD5);
@@ -189,6 +467,185 @@ public class TestBinaryManager {
         assertEquals(Collections.singleton(CONTENT_MD5), listObjects());
     }
 
+    @Test
+    public void testGCKeepsMetadata() throws Exception {
+        binaryManager.getBinary(Blobs.createBlob(CONTENT));
+        DBCollection files = binaryManager.getGridFS().getDB().getCollection("nxblobs.files");
+        // a custom field and the mark of a previous, interrupted run
+        DBObject set = new BasicDBObject("metadata.foo", "bar").append("metadata.gc-mark-key-1", true);
+        files.update(new BasicDBObject("filename", CONTENT_MD5), new BasicDBObject("$set", set));
+
+        BinaryGarbageCollector gc = binaryManager.getGarbageCollector();
+        gc.start();
+        gc.mark(CONTENT_MD5);
+        // marked twice, counted once
+        gc.mark(CONTENT_MD5);
+        gc.stop(true);
+        assertEquals(1, gc.getStatus().numBinaries);
+        assertEquals(0, gc.getStatus().numBinariesGC);
+
+        DBObject metadata = (DBObject) files.findOne(new BasicDBObject("filename", CONTENT_MD5)).get("metadata");
+        assertEquals("bar", metadata.get("foo"));
+        assertFalse(metadata.containsField("gc-mark-key-1"));
+    }
+
+    @Test
+    public void testBinaryManagerGCInMemory() throws Exception {
+        GridFSBinaryManager manager = newBinaryManager(Collections.singletonMap("gcMode", "memory"));
+        try {
+            manager.getBinary(Blobs.createBlob(CONTENT));
+            manager.getBinary(Blobs.createBlob(CONTENT2));
+            manager.getBinary(Blobs.createBlob(CONTENT3));
+
+            BinaryGarbageCollector gc = manager.getGarbageCollector();
+            waitForClock();
+            gc.start();
+            gc.mark(CONTENT_MD5);
+            gc.mark(CONTENT3_MD5);
+            gc.mark(CONTENT3_MD5);
+            gc.stop(true);
+            BinaryManagerStatus status = gc.getStatus();
+            assertEquals(2, status.numBinaries);
+            assertEquals(CONTENT.getBytes("UTF-8").length + 4, status.sizeBinaries);
+            assertEquals(1, status.numBinariesGC);
+            assertEquals(3, status.sizeBinariesGC);
+            assertEquals(new HashSet<>(Arrays.asList(CONTENT_MD5, CONTENT3_MD5)), listObjects());
+
+            // nothing was written to the files metadata
+            DBCollection files = manager.getGridFS().getDB().getCollection("nxblobs.files");
+            assertEquals(0, files.count(new BasicDBObject("metadata", new BasicDBObject("$ne", null))));
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testGCLeaseRenewedInMemory() throws Exception {
+        binaryManager.getBinary(Blobs.createBlob(CONTENT));
+        Map<String, String> config = new HashMap<>();
+        config.put("gcMode", "memory");
+        config.put("gcLeaseDuration", "1");
+        GridFSBinaryManager node = newBinaryManager(config);
+        GridFSBinaryManager otherNode = newBinaryManager(Collections.<String, String> emptyMap());
+        try {
+            BinaryGarbageCollector gc = node.getGarbageCollector();
+            gc.start();
+            // a mark phase longer than the lease
+            for (int i = 0; i < 3; i++) {
+                Thread.sleep(700);
+                gc.mark(CONTENT_MD5);
+            }
+
+            try {
+                otherNode.getGarbageCollector().start();
+                fail("GC should still be locked by the first node");
+            } catch (NuxeoException e) {
+                // expected
+            }
+
+            gc.stop(true);
+            assertEquals(1, gc.getStatus().numBinaries);
+            assertEquals(Collections.singleton(CONTENT_MD5), listObjects());
+        } finally {
+            node.close();
+            otherNode.close();
+        }
+    }
+
+    @Test
+    public void testGCUnacknowledged() throws Exception {
+        Map<String, String> config = new HashMap<>();
+        config.put("gc.writeConcern", "unacknowledged");
+        config.put("gcMarkBatchSize", "1");
+        GridFSBinaryManager manager = newBinaryManager(config);
+        try {
+            manager.getBinary(Blobs.createBlob(CONTENT));
+            manager.getBinary(Blobs.createBlob(CONTENT2));
+
+            // written acknowledged anyway, the marks are seen by the sweep
+            BinaryGarbageCollector gc = manager.getGarbageCollector();
+            waitForClock();
+            gc.start();
+            gc.mark(CONTENT_MD5);
+            gc.stop(true);
+            assertEquals(1, gc.getStatus().numBinaries);
+            assertEquals(1, gc.getStatus().numBinariesGC);
+            assertEquals(Collections.singleton(CONTENT_MD5), listObjects());
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testGCKeepsUploadsDuringRun() throws Exception {
+        binaryManager.getBinary(Blobs.createBlob(CONTENT));
+        binaryManager.getBinary(Blobs.createBlob(CONTENT2));
+        waitForClock();
+        BinaryGarbageCollector gc = binaryManager.getGarbageCollector();
+        gc.start();
+        // the start of the run is kept for a resumed run
+        DBObject state = binaryManager.getGridFS().getDB().getCollection("nxblobs.gc").findOne();
+        assertNotNull(state.get("runStart"));
+
+        // created and deduplicated by documents of a repository already marked
+        binaryManager.getBinary(Blobs.createBlob(CONTENT3));
+        binaryManager.getBinary(Blobs.createBlob(CONTENT2));
+        gc.stop(true);
+        assertEquals(1, gc.getStatus().numBinariesGC);
+        assertEquals(new HashSet<>(Arrays.asList(CONTENT2_MD5, CONTENT3_MD5)), listObjects());
+
+        // collected by the next run if still not referenced
+        waitForClock();
+        gc = binaryManager.getGarbageCollector();
+        gc.start();
+        gc.mark(CONTENT3_MD5);
+        gc.stop(true);
+        assertEquals(Collections.singleton(CONTENT3_MD5), listObjects());
+    }
+
+    @Test
+    public void testGCLeaseAndResume() throws Exception {
+        binaryManager.getBinary(Blobs.createBlob(CONTENT));
+        binaryManager.getBinary(Blobs.createBlob(CONTENT2));
+        // marks are written right away, then the node crashes before its sweep
+        GridFSBinaryManager node = newBinaryManager(Collections.singletonMap("gcMarkBatchSize", "1"));
+        GridFSBinaryManager otherNode = newBinaryManager(Collections.<String, String> emptyMap());
+        try {
+            BinaryGarbageCollector gc = node.getGarbageCollector();
+            gc.start();
+            gc.mark(CONTENT_MD5);
+            gc.mark(CONTENT2_MD5);
+
+            BinaryGarbageCollector otherGC = otherNode.getGarbageCollector();
+            try {
+                otherGC.start();
+                fail("GC should be locked by the first node");
+            } catch (NuxeoException e) {
+                // expected
+            }
+
+            // lease expired: the other node resumes the run
+            binaryManager.getGridFS().getDB().getCollection("nxblobs.gc").update(new BasicDBObject(),
+                    new BasicDBObject("$set", new BasicDBObject("leaseUntil", new Date(0))));
+            otherGC.start();
+            otherGC.mark(CONTENT_MD5);
+            otherGC.stop(true);
+            assertEquals(2, otherGC.getStatus().numBinaries);
+            assertEquals(0, otherGC.getStatus().numBinariesGC);
+            assertEquals(new HashSet<>(Arrays.asList(CONTENT_MD5, CONTENT2_MD5)), listObjects());
+        } finally {
+            node.close();
+            otherNode.close();
+        }
+    }
+
+    /**
+     * Lets the clock move past the last upload, since a GC run keeps the files uploaded in the millisecond it starts.
+     */
+    protected static void waitForClock() throws InterruptedException {
+        Thread.sleep(5);
+    }
+
     protected static String toString(InputStream stream) throws IOException {
         return IOUtils.toString(stream, "UTF-8");
     }
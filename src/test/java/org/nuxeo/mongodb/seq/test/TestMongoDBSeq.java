@@ -17,13 +17,22 @@
  */
 package org.nuxeo.mongodb.seq.test;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.core.test.CoreFeature;
 import org.nuxeo.ecm.core.uidgen.UIDGeneratorService;
 import org.nuxeo.ecm.core.uidgen.UIDSequencer;
 import org.nuxeo.mongodb.seq.MongoDBSequencer;
+import org.nuxeo.mongodb.seq.SequenceRange;
 import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
@@ -56,4 +65,127 @@ public class TestMongoDBSeq {
         Assert.assertEquals(1, seq.getNext("B"));
     }
 
+    @Test
+    public void testLongAndBlocks() {
+
+        MongoDBSequencer seq = new MongoDBSequencer("localhost", "nuxeo");
+        try {
+            seq.initSequence("L", Integer.MAX_VALUE - 1L);
+            Assert.assertEquals(Integer.MAX_VALUE, seq.getNext("L"));
+            Assert.assertEquals(Integer.MAX_VALUE + 1L, seq.getNextLong("L"));
+            try {
+                seq.getNext("L");
+                Assert.fail("int overflow should be detected");
+            } catch (NuxeoException e) {
+                // expected
+            }
+
+            seq.initSequence("R", 0);
+            SequenceRange range = seq.getNextBlock("R", 1000);
+            Assert.assertEquals(1, range.getFirst());
+            Assert.assertEquals(1000, range.getLast());
+            Assert.assertEquals(1001, seq.getNextLong("R"));
+        } finally {
+            seq.dispose();
+        }
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+
+        Framework.getProperties().put(MongoDBSequencer.BLOCK_SIZE_PROPERTY, "10");
+        MongoDBSequencer seq = new MongoDBSequencer("localhost", "nuxeo");
+        try {
+            seq.init();
+            seq.initSequence("A", 0);
+            for (long i = 1; i <= 100; i++) {
+                Assert.assertEquals(i, seq.getNextAsync("A").get().longValue());
+            }
+        } finally {
+            seq.dispose();
+            Framework.getProperties().remove(MongoDBSequencer.BLOCK_SIZE_PROPERTY);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testAsyncBurst() throws Exception {
+
+        Framework.getProperties().put(MongoDBSequencer.BLOCK_SIZE_PROPERTY, "4");
+        Framework.getProperties().put(MongoDBSequencer.MAX_BLOCK_SIZE_PROPERTY, "4");
+        MongoDBSequencer seq = new MongoDBSequencer("localhost", "nuxeo");
+        try {
+            seq.init();
+            seq.initSequence("A", 0);
+            // many more calls than a block holds, most of them wait for a reservation on the async threads
+            List<CompletableFuture<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                futures.add(seq.getNextAsync("A"));
+            }
+            Set<Long> values = new HashSet<>();
+            for (CompletableFuture<Long> future : futures) {
+                values.add(future.get(20, TimeUnit.SECONDS));
+            }
+            Assert.assertEquals(1000, values.size());
+        } finally {
+            seq.dispose();
+            Framework.getProperties().remove(MongoDBSequencer.BLOCK_SIZE_PROPERTY);
+            Framework.getProperties().remove(MongoDBSequencer.MAX_BLOCK_SIZE_PROPERTY);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testReuseAfterDispose() {
+
+        Framework.getProperties().put(MongoDBSequencer.BLOCK_SIZE_PROPERTY, "10");
+        MongoDBSequencer seq = new MongoDBSequencer("localhost", "nuxeo");
+        try {
+            seq.init();
+            seq.initSequence("A", 0);
+            // the next block is being reserved in the background
+            for (int i = 1; i <= 8; i++) {
+                Assert.assertEquals(i, seq.getNext("A"));
+            }
+            seq.dispose();
+
+            // initialized again on first use, without waiting for the dropped reservation
+            Assert.assertTrue(seq.getNext("A") > 8);
+        } finally {
+            seq.dispose();
+            Framework.getProperties().remove(MongoDBSequencer.BLOCK_SIZE_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testBlockAllocation() {
+
+        Framework.getProperties().put(MongoDBSequencer.BLOCK_SIZE_PROPERTY, "10");
+        Framework.getProperties().put(MongoDBSequencer.STRICT_KEYS_PROPERTY, "S");
+        MongoDBSequencer seq = new MongoDBSequencer("localhost", "nuxeo");
+        try {
+            seq.init();
+            seq.initSequence("A", 0);
+            seq.initSequence("S", 0);
+
+            for (int i = 1; i <= 25; i++) {
+                Assert.assertEquals(i, seq.getNext("A"));
+            }
+            Assert.assertEquals(1, seq.getNext("S"));
+            Assert.assertEquals(2, seq.getNext("S"));
+
+            // a second node gets its own block, after the ones reserved by the first
+            MongoDBSequencer other = new MongoDBSequencer("localhost", "nuxeo");
+            try {
+                other.init();
+                Assert.assertTrue(other.getNext("A") > 25);
+                Assert.assertEquals(3, other.getNext("S"));
+            } finally {
+                other.dispose();
+            }
+        } finally {
+            seq.dispose();
+            Framework.getProperties().remove(MongoDBSequencer.BLOCK_SIZE_PROPERTY);
+            Framework.getProperties().remove(MongoDBSequencer.STRICT_KEYS_PROPERTY);
+        }
+    }
+
 }